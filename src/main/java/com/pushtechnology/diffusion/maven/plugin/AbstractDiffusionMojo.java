@@ -17,21 +17,44 @@
  */
 package com.pushtechnology.diffusion.maven.plugin;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 
 import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
 
 /**
  * Common base class for most Diffusion mojos.
  */
 public abstract class AbstractDiffusionMojo extends AbstractMojo {
+
+    /**
+     * The outcome of stopping a server.
+     */
+    protected enum StopOutcome {
+        /** The server stopped gracefully. */
+        STOPPED,
+        /**
+         * The server did not stop within the drain timeout and the stop was
+         * forced.
+         */
+        FORCED,
+        /** The server was left running for other modules. */
+        LEFT_RUNNING
+    }
+
     /**
      * Whether or not to include dependencies on the plugin's classpath with &lt;scope&gt;provided&lt;/scope&gt;
      * Use with caution. This can cause duplicate jars/classes.
@@ -46,7 +69,7 @@ public abstract class AbstractDiffusionMojo extends AbstractMojo {
     protected String[] excludedGoals;
 
     /**
-     * System properties to set before execution.
+     * System properties to give to the server.
      * Note that these properties will not override system properties
      * that have been set on the command line or by the JVM.
      * They will override system properties that have been set via systemPropertiesFile.
@@ -55,6 +78,25 @@ public abstract class AbstractDiffusionMojo extends AbstractMojo {
     @Parameter
     protected SystemProperties systemProperties;
 
+    /**
+     * Whether to also set systemProperties as JVM system properties when the
+     * server starts, for Diffusion code and tests that read them from the
+     * JVM rather than from the server's properties. The values are then
+     * visible to every server in the JVM. Set this to false to keep the
+     * properties of servers that run in the same JVM apart.
+     */
+    @Parameter(property = "diffusion.globalSystemProperties", defaultValue = "true")
+    protected boolean globalSystemProperties;
+
+    /**
+     * Number of milliseconds to give a server to close its client sessions
+     * and stop gracefully before the stop is forced. A forked server's JVM
+     * is killed; an embedded server's stop is interrupted. If the server is
+     * still running a few seconds later, the stop fails.
+     */
+    @Parameter(property = "diffusion.drainTimeout", defaultValue = "30000")
+    protected long drainTimeout = BoundedStop.DEFAULT_DRAIN_TIMEOUT;
+
     /**
      * Skip this mojo execution.
      */
@@ -73,24 +115,326 @@ public abstract class AbstractDiffusionMojo extends AbstractMojo {
     @Parameter(defaultValue = "${plugin.artifacts}", readonly = true, required = true)
     protected List<Artifact> pluginArtifacts;
 
+    @Parameter(defaultValue = "${session}", readonly = true, required = true)
+    protected MavenSession session;
+
+    /**
+     * Make a server id safe to use in a file name.
+     */
+    protected static String toFileName(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    protected final ServerRegistry getServerRegistry() {
+        return ServerRegistry.of(getPluginContext());
+    }
+
+    /**
+     * @return The most recently started server of the module, or
+     *         {@code null}
+     */
     protected final EmbeddedDiffusion getServer() {
-        return (EmbeddedDiffusion) getPluginContext().get("startedServerInstance");
+        final RegisteredServer server = getServerRegistry().latest();
+        return server == null ? null : server.getServer();
+    }
+
+    /**
+     * @return The class loader of the most recently started server of the
+     *         module, or {@code null}
+     */
+    protected final BlockingClassLoader getServerClassLoader() {
+        final RegisteredServer server = getServerRegistry().latest();
+        return server == null ? null : server.getClassLoader();
+    }
+
+    /**
+     * Register a started server and publish its ports. A server whose id is
+     * already taken is stopped.
+     */
+    protected final void registerServer(String id, RegisteredServer server)
+        throws MojoExecutionException {
+
+        if (!getServerRegistry().register(id, server)) {
+            // Another execution registered the id while this one started.
+            stopDiffusion(id, server);
+            throw new MojoExecutionException("Diffusion Server " + id + " is already running");
+        }
+
+        publishPorts(id, server);
+    }
+
+    /**
+     * Publish the ports of a server as project properties, for later
+     * plugins such as failsafe to pass on to tests.
+     */
+    private void publishPorts(String id, RegisteredServer server) {
+        final Properties properties = project.getProperties();
+        final String port = Integer.toString(server.getPort());
+        final String sslPort = Integer.toString(server.getSslPort());
+
+        properties.setProperty("diffusion.port", port);
+        properties.setProperty("diffusion.sslPort", sslPort);
+        properties.setProperty("diffusion." + id + ".port", port);
+        properties.setProperty("diffusion." + id + ".sslPort", sslPort);
+
+        getLog().info("Diffusion Server " + id + " is using port " + port + " and SSL port " + sslPort);
+    }
+
+    /**
+     * Wait for servers that are starting in the background, and register
+     * them. Each wait is bounded by the start execution's
+     * serverStartTimeout; a start that takes longer is abandoned, see
+     * {@link BackgroundStart}.
+     *
+     * @param ids The servers to wait for. Ids with no pending start are
+     *        ignored.
+     * @throws MojoExecutionException If a server failed to start. The
+     *         others are still waited for.
+     */
+    protected final void awaitStarting(List<String> ids) throws MojoExecutionException {
+        MojoExecutionException failure = null;
+
+        for (String id : ids) {
+            final BackgroundStart start = getServerRegistry().removeStarting(id);
+
+            if (start == null) {
+                continue;
+            }
+
+            try {
+                awaitStarting(id, start);
+            }
+            catch (MojoExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void awaitStarting(String id, BackgroundStart start)
+        throws MojoExecutionException {
+
+        final long begin = System.nanoTime();
+        final RegisteredServer server;
+
+        try {
+            server = start.await();
+        }
+        catch (TimeoutException e) {
+            throw new MojoExecutionException("Diffusion Server " + id + " did not start within " +
+                start.getTimeout() + "ms, abandoned the start", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+
+            throw new MojoExecutionException("Diffusion Server " + id + " failed to start", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted waiting for Diffusion Server " + id, e);
+        }
+
+        getLog().info("Waited " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) +
+            "ms for Diffusion Server " + id + " to start");
+
+        registerServer(id, server);
+    }
+
+    /**
+     * Wait for servers that are starting in the background so that they
+     * can be stopped, logging rather than propagating failure.
+     */
+    protected final void awaitStartingQuietly(List<String> ids) {
+        try {
+            awaitStarting(ids);
+        }
+        catch (MojoExecutionException e) {
+            getLog().warn(e.getMessage(), e.getCause());
+        }
     }
 
+    /**
+     * Stop all the servers of the module, including those still starting
+     * in the background.
+     */
     protected final void stopDiffusion() throws MojoExecutionException {
-        final EmbeddedDiffusion server = getServer();
+        awaitStartingQuietly(getServerRegistry().startingIds());
+
+        final List<String> ids = getServerRegistry().ids();
 
-        if (server != null) {
+        if (ids.isEmpty()) {
+            getLog().warn("Diffusion Server never started");
+            return;
+        }
+
+        MojoExecutionException failure = null;
+
+        for (String id : ids) {
             try {
-                server.stop();
-                getLog().info("Stopped Diffusion Server");
+                stopDiffusion(id);
+            }
+            catch (MojoExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stop a server and forget it.
+     *
+     * @return How the server was stopped, or {@code null} if there is no
+     *         server with the id
+     * @see #stopDiffusion(String, RegisteredServer)
+     */
+    protected final StopOutcome stopDiffusion(String id) throws MojoExecutionException {
+        final RegisteredServer server = getServerRegistry().remove(id);
+
+        if (server == null) {
+            getLog().warn("No Diffusion Server with id " + id);
+            return null;
+        }
+
+        return stopDiffusion(id, server);
+    }
+
+    /**
+     * Stop a server. Its class loader is returned to the session's
+     * {@link ServerClassLoaderCache} if it came from there, otherwise it is
+     * closed.
+     *
+     * <p>
+     * A shared server is left running for later modules, and stopped when
+     * the session ends. A server that does not stop within the drain
+     * timeout is forced to stop, see {@link BoundedStop}. If it is still
+     * running after that, the stop fails, and the class loader is released
+     * once the server has finally stopped.
+     * </p>
+     *
+     * @return {@link StopOutcome#STOPPED} if the server stopped
+     *         gracefully, {@link StopOutcome#FORCED} if the stop was forced,
+     *         or {@link StopOutcome#LEFT_RUNNING} if it is a shared server
+     */
+    protected final StopOutcome stopDiffusion(String id, RegisteredServer server)
+        throws MojoExecutionException {
+
+        if (server.getSharedServerKey() != null && session != null) {
+            final int users = SharedServers.of(session).detach(server.getSharedServerKey());
+
+            if (users >= 0) {
+                getLog().info("Leaving shared Diffusion Server " + id + " running for " +
+                    (users > 0 ? users + " other modules" : "later modules, until the build ends"));
+                return StopOutcome.LEFT_RUNNING;
+            }
+        }
+
+        final boolean graceful;
+
+        try {
+            if (server.getForkedServer() != null) {
+                graceful = stopForkedServer(id, server.getForkedServer());
             }
-            catch (Exception e) {
-                throw new MojoExecutionException("Failure", e);
+            else {
+                // The class loader is released once the stop has finished,
+                // which may be after a forced stop fails.
+                graceful = BoundedStop.stop(
+                    server.getServer(), "Diffusion Server " + id, drainTimeout, getLog(),
+                    gracefully -> releaseServerClassLoader(server, gracefully));
             }
         }
+        catch (TimeoutException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        catch (Exception e) {
+            throw new MojoExecutionException("Failed to stop Diffusion Server " + id, e);
+        }
+
+        return graceful ? StopOutcome.STOPPED : StopOutcome.FORCED;
+    }
+
+    /**
+     * @return {@code true} if the server stopped gracefully
+     */
+    private boolean stopForkedServer(String id, ForkedServer server)
+        throws InterruptedException, TimeoutException {
+
+        boolean exited = false;
+
+        try {
+            exited = BoundedStop.stop(server, "forked Diffusion Server " + id, drainTimeout, getLog());
+            return exited;
+        }
+        finally {
+            final ClassDataSharing sharing = server.getClassDataSharing();
+
+            if (sharing != null) {
+                try {
+                    if (sharing.complete(exited)) {
+                        getLog().info("Created class data sharing archive " + sharing.getArchive());
+                    }
+                }
+                catch (IOException e) {
+                    getLog().warn("Failed to save class data sharing archive " + sharing.getArchive(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a server's class loader to the session's cache if it came from
+     * there, otherwise close it.
+     */
+    private void releaseServerClassLoader(RegisteredServer server, boolean stoppedGracefully) {
+        if (server.getClassLoaderKey() != null && session != null) {
+            releaseServerClassLoader(server.getClassLoaderKey(), server.getClassLoader(), stoppedGracefully);
+        }
         else {
-            getLog().warn("Diffusion Server never started");
+            closeQuietly(server.getClassLoader());
+        }
+    }
+
+    private void releaseServerClassLoader(String key,
+                                          BlockingClassLoader serverClassLoader,
+                                          boolean stoppedGracefully) {
+        try {
+            if (ServerClassLoaderCache.of(session).release(key, serverClassLoader, stoppedGracefully)) {
+                getLog().debug("Kept Diffusion server class loader for reuse");
+            }
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to close Diffusion server class loader", e);
+        }
+    }
+
+    /**
+     * Close a server class loader, logging rather than propagating failure.
+     */
+    protected final void closeQuietly(BlockingClassLoader serverClassLoader) {
+        if (serverClassLoader != null) {
+            try {
+                serverClassLoader.close();
+            }
+            catch (IOException e) {
+                getLog().warn("Failed to close Diffusion server class loader", e);
+            }
         }
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.apache.maven.execution.MavenSession;
+
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
+
+/**
+ * A server starting on a thread of its own, for an await or stop execution
+ * to wait for.
+ *
+ * <p>
+ * A start is abandoned if the wait for it times out, or if the session
+ * ends before any execution waits for it, for example because the module's
+ * build failed first. An abandoned start is interrupted, and its server is
+ * stopped if it starts regardless.
+ * </p>
+ */
+final class BackgroundStart implements Closeable {
+
+    private final String id;
+    private final long timeout;
+    private final Consumer<RegisteredServer> stop;
+    private final CompletableFuture<RegisteredServer> result = new CompletableFuture<>();
+    private final Thread thread;
+    private boolean abandoned;
+    private boolean taken;
+
+    /**
+     * @param id The id of the server
+     * @param start Starts the server
+     * @param timeout Number of milliseconds to wait for the server to start
+     * @param stop Stops the server of an abandoned start. Must not throw.
+     */
+    BackgroundStart(String id,
+                    Callable<RegisteredServer> start,
+                    long timeout,
+                    Consumer<RegisteredServer> stop) {
+        this.id = id;
+        this.timeout = timeout;
+        this.stop = stop;
+        this.thread = new Thread(() -> run(start), "diffusion-start-" + id);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Begin starting the server. The start is abandoned when the session
+     * ends, unless it has been waited for.
+     *
+     * @param session The session, or {@code null}
+     * @param key Identifies the start in the session
+     */
+    void begin(MavenSession session, String key) {
+        if (session != null) {
+            SessionScope.of(session).put(BackgroundStart.class.getName() + ":" + key, this);
+        }
+
+        thread.start();
+    }
+
+    private void run(Callable<RegisteredServer> start) {
+        final RegisteredServer server;
+
+        try {
+            server = start.call();
+        }
+        catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        synchronized (this) {
+            if (!abandoned) {
+                result.complete(server);
+                return;
+            }
+        }
+
+        stop.accept(server);
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Wait for the server to start. If it has not started within the
+     * timeout, or the wait is interrupted, the start is abandoned.
+     *
+     * @return The server, which the caller is responsible for stopping
+     * @throws ExecutionException If the start failed
+     */
+    RegisteredServer await()
+        throws ExecutionException, InterruptedException, TimeoutException {
+
+        final RegisteredServer server;
+
+        try {
+            server = result.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException | TimeoutException e) {
+            abandon();
+            throw e;
+        }
+
+        synchronized (this) {
+            if (abandoned) {
+                throw new ExecutionException(
+                    new IllegalStateException("Start of Diffusion Server " + id + " was abandoned"));
+            }
+
+            taken = true;
+        }
+
+        return server;
+    }
+
+    /**
+     * Abandon the start, unless its server has been taken. The starting
+     * thread is interrupted, and the server is stopped if it has started or
+     * once it does.
+     */
+    void abandon() {
+        final RegisteredServer started;
+
+        synchronized (this) {
+            if (abandoned || taken) {
+                return;
+            }
+
+            abandoned = true;
+            started = result.isDone() && !result.isCompletedExceptionally() ? result.join() : null;
+        }
+
+        if (started != null) {
+            stop.accept(started);
+        }
+        else {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Abandon the start and wait, up to the timeout, for it to finish, so
+     * that a server that starts regardless is stopped before the build
+     * exits.
+     */
+    @Override
+    public void close() {
+        abandon();
+
+        try {
+            thread.join(timeout);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "background start of Diffusion Server " + id;
+    }
+}
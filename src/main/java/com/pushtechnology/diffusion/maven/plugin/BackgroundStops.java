@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * Servers being stopped in the background by stop executions.
+ *
+ * <p>
+ * Each stop runs on its own thread. The session waits for them all when it
+ * ends, so the build does not exit while a server is stopping. Each stop is
+ * bounded by {@link BoundedStop}, so the wait is too.
+ * </p>
+ */
+final class BackgroundStops implements Closeable {
+
+    private final List<Thread> stops = new ArrayList<>();
+
+    private BackgroundStops() {
+    }
+
+    /**
+     * Find the background stops of a session, creating them if necessary.
+     */
+    static BackgroundStops of(MavenSession session) {
+        return SessionScope.of(session).get(BackgroundStops.class.getName(), BackgroundStops::new);
+    }
+
+    /**
+     * Start stopping a server.
+     *
+     * @param id The id of the server
+     * @param stop Stops the server. Must not throw.
+     */
+    synchronized void start(String id, Runnable stop) {
+        final Thread thread = new Thread(stop, "diffusion-stop-" + id);
+        thread.setDaemon(true);
+        thread.start();
+        stops.add(thread);
+    }
+
+    /**
+     * Wait for the stops to finish.
+     */
+    @Override
+    public void close() {
+        final List<Thread> remaining;
+
+        synchronized (this) {
+            remaining = new ArrayList<>(stops);
+            stops.clear();
+        }
+
+        for (Thread stop : remaining) {
+            try {
+                stop.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "background Diffusion Server stops";
+    }
+}
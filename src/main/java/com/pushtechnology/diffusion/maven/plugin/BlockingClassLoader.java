@@ -26,15 +26,27 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.enumeration;
 import static java.util.Collections.list;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
 
 
 /**
@@ -45,11 +57,69 @@ import java.util.Set;
  */
 public class BlockingClassLoader extends URLClassLoader {
 
+    static {
+        // Class loading locks are per class name, not the loader instance.
+        registerAsParallelCapable();
+    }
+
+    /**
+     * The maximum number of resource lookups of each kind to cache.
+     */
+    private static final int RESOURCE_CACHE_SIZE = 4096;
+
+    private static final URL[] NO_URLS = new URL[0];
+
+    /**
+     * {@code ClassLoader.getDefinedPackage(String)}, or {@code null} before
+     * Java 9.
+     */
+    private static final Method GET_DEFINED_PACKAGE = getDefinedPackageMethod();
+
+    /**
+     * How a class or resource name is handled.
+     */
+    enum Route {
+        /** Loaded by the parent class loader. */
+        SHARED,
+        /** Not loaded, unless by the grandparent class loader. */
+        BLOCKED,
+        /** Loaded by this class loader, unless by the grandparent. */
+        ISOLATED,
+        /** Standard parent-first delegation, unless by the grandparent. */
+        DEFAULT
+    }
+
     private final boolean m_respectGrandparents;
     private final Classes m_blocked;
     private final Classes m_isolated;
     private final Classes m_shared;
 
+    /**
+     * Where to find each package, or {@code null} if the class path could not
+     * be indexed.
+     */
+    private final ClassPathIndex m_index;
+
+    private final ResourceCache m_resourceCache =
+        new ResourceCache(RESOURCE_CACHE_SIZE);
+    private final ResourceCache m_resourceListCache =
+        new ResourceCache(RESOURCE_CACHE_SIZE);
+
+    /**
+     * Names of classes that the grandparent class loader failed to load. A
+     * failed lookup costs a {@link ClassNotFoundException}, so each name is
+     * only tried once.
+     */
+    private final Set<String> m_grandparentMisses = ConcurrentHashMap.newKeySet();
+
+    private final ClassLoadingStatistics m_statistics = new ClassLoadingStatistics();
+
+    /**
+     * The names of the classes defined by this loader, in order, or
+     * {@code null} if not recording.
+     */
+    private volatile Queue<String> m_definedClasses;
+
     private static URL[] join(List<URL> additionalClassPath, URL[] urls) {
         final List<URL> classPath = new ArrayList<URL>(additionalClassPath);
         classPath.addAll(asList(urls));
@@ -100,6 +170,51 @@ public class BlockingClassLoader extends URLClassLoader {
                                Set<String> isolated,
                                Set<String> shared,
                                boolean respectGrandparents) {
+        this(parent,
+                additionalClassPath,
+                blocked,
+                isolated,
+                shared,
+                respectGrandparents,
+                null);
+    }
+
+    /**
+     * Constructor that caches the class path index in a file.
+     *
+     * <p>
+     * If the class path consists only of jar files, an index from package to
+     * jar is built when the class loader is created, and classes and
+     * resources are loaded directly from the jars that contain their
+     * package.
+     * </p>
+     *
+     * @param parent
+     *          Parent classloader.
+     * @param additionalClassPath
+     *          Prepended to the parent's URLs to calculate the classpath for this
+     *          class loader.
+     * @param blocked
+     *          Classes to block, whether or not the parent class loader has its
+     *          own copies.
+     * @param isolated
+     *          Classes to load in this class loader, whether or not the parent
+     *          class loader has its own copies.
+     * @param shared
+     *          Classes that should be loaded by the parent class loader,
+     *          overriding {@code blocked} and {@code isolated}.
+     * @param respectGrandparents
+     *          Only block or isolate classes from the parent class loader.
+     * @param indexCache
+     *          File in which to cache the class path index, or {@code null}.
+     */
+    public BlockingClassLoader(URLClassLoader parent,
+                               List<URL> additionalClassPath,
+                               Set<String> blocked,
+                               Set<String> isolated,
+                               Set<String> shared,
+                               boolean respectGrandparents,
+                               File indexCache) {
         super(join(additionalClassPath, parent.getURLs()), parent);
 
         m_blocked = new Classes(blocked);
@@ -107,6 +222,8 @@ public class BlockingClassLoader extends URLClassLoader {
         m_shared = new Classes(shared);
 
         m_respectGrandparents = respectGrandparents;
+
+        m_index = ClassPathIndex.build(getURLs(), indexCache);
     }
 
     /**
@@ -133,12 +250,48 @@ public class BlockingClassLoader extends URLClassLoader {
                                Set<String> isolated,
                                Set<String> shared,
                                boolean respectGrandparents) {
+        this(additionalClassPath,
+                blocked,
+                isolated,
+                shared,
+                respectGrandparents,
+                null);
+    }
+
+    /**
+     * Simplified constructor that uses standard application classloader as
+     * the parent, and caches the class path index in a file.
+     *
+     * @param additionalClassPath
+     *          Prepended to the parent's URLs to calculate the classpath for this
+     *          class loader.
+     * @param blocked
+     *          Classes to block, whether or not the parent class loader has its
+     *          own copies.
+     * @param isolated
+     *          Classes to load in this class loader, whether or not the parent
+     *          class loader has its own copies.
+     * @param shared
+     *          Classes that should be loaded by the parent class loader,
+     *          overriding {@code blocked} and {@code isolated}.
+     * @param respectGrandparents
+     *          Only block or isolate classes from the parent class loader.
+     * @param indexCache
+     *          File in which to cache the class path index, or {@code null}.
+     */
+    public BlockingClassLoader(List<URL> additionalClassPath,
+                               Set<String> blocked,
+                               Set<String> isolated,
+                               Set<String> shared,
+                               boolean respectGrandparents,
+                               File indexCache) {
         this((URLClassLoader)BlockingClassLoader.class.getClassLoader(),
                 additionalClassPath,
                 blocked,
                 isolated,
                 shared,
-                respectGrandparents);
+                respectGrandparents,
+                indexCache);
     }
 
 
@@ -176,24 +329,50 @@ public class BlockingClassLoader extends URLClassLoader {
     @Override protected Class<?> loadClass(String name, boolean resolve)
             throws ClassNotFoundException  {
 
-        if (!m_shared.matches(name, false)) {
+        final Route route = route(name, false);
+        final long start = System.nanoTime();
+
+        try {
+            return loadClass(route, name, resolve);
+        }
+        finally {
+            m_statistics.classLoaded(route, name, System.nanoTime() - start);
+        }
+    }
+
+    private Class<?> loadClass(Route route, String name, boolean resolve)
+            throws ClassNotFoundException  {
+
+        if (route != Route.SHARED) {
 
             if (m_respectGrandparents) {
-                try {
-                    // We always have a grandparent classloader.
-                    return Class.forName(name, resolve, getParent().getParent());
+                if (m_grandparentMisses.contains(name)) {
+                    m_statistics.classGrandparentMissAvoided();
                 }
-                catch (ClassNotFoundException e) {
-                    // Grandparent knows nothing.
+                else {
+                    final long start = System.nanoTime();
+
+                    try {
+                        // We always have a grandparent classloader.
+                        final Class<?> c =
+                            Class.forName(name, resolve, getParent().getParent());
+                        m_statistics.classGrandparentHit(System.nanoTime() - start);
+                        return c;
+                    }
+                    catch (ClassNotFoundException e) {
+                        // Grandparent knows nothing.
+                        m_grandparentMisses.add(name);
+                        m_statistics.classGrandparentMiss(System.nanoTime() - start);
+                    }
                 }
             }
 
-            if (m_blocked.matches(name, false)) {
+            if (route == Route.BLOCKED) {
                 throw new ClassNotFoundException();
             }
 
-            if (m_isolated.matches(name, false)) {
-                synchronized (this) {
+            if (route == Route.ISOLATED) {
+                synchronized (getClassLoadingLock(name)) {
                     Class<?> c = findLoadedClass(name);
 
                     if (c == null) {
@@ -215,25 +394,53 @@ public class BlockingClassLoader extends URLClassLoader {
     /**
      * Override only to check parent ClassLoader if not blocked.
      *
+     * <p>
+     * Results are cached until the class loader is closed.
+     * </p>
+     *
      * {@inheritDoc}
      */
     @Override public URL getResource(String name) {
 
-        if (!m_shared.matches(name, true)) {
+        final Route route = route(name, true);
+        final URL[] cached = m_resourceCache.get(route, name);
+
+        if (cached != null) {
+            m_statistics.resourceCacheHit();
+            return cached.length == 0 ? null : cached[0];
+        }
+
+        final long start = System.nanoTime();
+        final URL result = lookupResource(route, name);
+        m_statistics.resourceFound(route, name, System.nanoTime() - start);
+
+        m_resourceCache.put(route, name,
+                result == null ? NO_URLS : new URL[] { result });
+
+        return result;
+    }
+
+    private URL lookupResource(Route route, String name) {
+
+        if (route != Route.SHARED) {
 
             if (m_respectGrandparents && getParent().getParent() != null) {
+                final long start = System.nanoTime();
                 final URL grandParentResult = getParent().getParent().getResource(name);
 
                 if (grandParentResult != null) {
+                    m_statistics.resourceGrandparentHit(System.nanoTime() - start);
                     return grandParentResult;
                 }
+
+                m_statistics.resourceGrandparentMiss(System.nanoTime() - start);
             }
 
-            if (m_blocked.matches(name, true)) {
+            if (route == Route.BLOCKED) {
                 return null;
             }
 
-            if (m_isolated.matches(name, true)) {
+            if (route == Route.ISOLATED) {
                 return findResource(name);
             }
         }
@@ -244,36 +451,393 @@ public class BlockingClassLoader extends URLClassLoader {
     /**
      * Override only to check parent ClassLoader if not blocked.
      *
+     * <p>
+     * Results are cached until the class loader is closed.
+     * </p>
+     *
      * {@inheritDoc}
      */
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
 
-        if (!m_shared.matches(name, true)) {
+        final Route route = route(name, true);
+        URL[] result = m_resourceListCache.get(route, name);
+
+        if (result == null) {
+            final long start = System.nanoTime();
+            result = lookupResources(route, name);
+            m_statistics.resourceFound(route, name, System.nanoTime() - start);
+
+            m_resourceListCache.put(route, name, result);
+        }
+        else {
+            m_statistics.resourceCacheHit();
+        }
+
+        return enumeration(asList(result));
+    }
+
+    private URL[] lookupResources(Route route, String name) throws IOException {
+
+        if (route != Route.SHARED) {
 
             final List<URL> result = new ArrayList<URL>();
 
             if (m_respectGrandparents && getParent() != null && getParent().getParent() != null) {
-                result.addAll(list(getParent().getParent().getResources(name)));
+                final long start = System.nanoTime();
+                final List<URL> grandparentResult =
+                    list(getParent().getParent().getResources(name));
+
+                if (grandparentResult.isEmpty()) {
+                    m_statistics.resourceGrandparentMiss(System.nanoTime() - start);
+                }
+                else {
+                    m_statistics.resourceGrandparentHit(System.nanoTime() - start);
+                    result.addAll(grandparentResult);
+                }
             }
 
-            if (m_blocked.matches(name, true)) {
-                return enumeration(result);
+            if (route == Route.BLOCKED) {
+                return result.toArray(NO_URLS);
             }
 
-            if (m_isolated.matches(name, true)) {
+            if (route == Route.ISOLATED) {
                 result.addAll(list(findResources(name)));
 
-                return enumeration(result);
+                return result.toArray(NO_URLS);
+            }
+        }
+
+        return list(super.getResources(name)).toArray(NO_URLS);
+    }
+
+    private Route route(String name, boolean isResource) {
+        if (m_shared.matches(name, isResource)) {
+            return Route.SHARED;
+        }
+        else if (m_blocked.matches(name, isResource)) {
+            return Route.BLOCKED;
+        }
+        else if (m_isolated.matches(name, isResource)) {
+            return Route.ISOLATED;
+        }
+        else {
+            return Route.DEFAULT;
+        }
+    }
+
+    /**
+     * Override to load directly from the jar that holds the package, if the
+     * class path is indexed.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final Class<?> result =
+            m_index == null ? super.findClass(name) : findIndexedClass(name);
+
+        m_statistics.classDefined();
+
+        final Queue<String> definedClasses = m_definedClasses;
+
+        if (definedClasses != null) {
+            definedClasses.add(name);
+        }
+
+        return result;
+    }
+
+    private Class<?> findIndexedClass(String name) throws ClassNotFoundException {
+        final String path = name.replace('.', '/').concat(".class");
+        final ClassPathIndex.Jar[] jars = m_index.jarsFor(path);
+
+        if (jars == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        try {
+            for (ClassPathIndex.Jar jar : jars) {
+                if (jar.isMultiRelease()) {
+                    return super.findClass(name);
+                }
+            }
+
+            for (ClassPathIndex.Jar jar : jars) {
+                final JarEntry entry = jar.getEntry(path);
+
+                if (entry != null) {
+                    return defineClass(name, jar, entry);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        throw new ClassNotFoundException(name);
+    }
+
+    private Class<?> defineClass(String name,
+                                 ClassPathIndex.Jar jar,
+                                 JarEntry entry) throws IOException {
+
+        final int lastDot = name.lastIndexOf('.');
+
+        if (lastDot > 0) {
+            final String packageName = name.substring(0, lastDot);
+
+            if (definedPackage(packageName) == null) {
+                try {
+                    if (jar.getManifest() != null) {
+                        definePackage(packageName, jar.getManifest(), jar.getURL());
+                    }
+                    else {
+                        definePackage(packageName,
+                                null, null, null, null, null, null, null);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // Defined concurrently by another thread.
+                }
+            }
+        }
+
+        final byte[] bytes = jar.read(entry);
+
+        // The signers are only available once the entry has been read.
+        final Class<?> result = defineClass(name, bytes, 0, bytes.length,
+                new CodeSource(jar.getURL(), entry.getCodeSigners()));
+
+        m_statistics.classBytesDefined(bytes.length);
+
+        return result;
+    }
+
+    private static Method getDefinedPackageMethod() {
+        try {
+            return ClassLoader.class.getMethod("getDefinedPackage", String.class);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find a package defined by this class loader, ignoring its ancestors.
+     * {@code getPackage}, deprecated from Java 9, is only called on Java 8,
+     * which has no {@code getDefinedPackage}.
+     */
+    @SuppressWarnings("deprecation")
+    private Package definedPackage(String name) {
+        if (GET_DEFINED_PACKAGE == null) {
+            return getPackage(name);
+        }
+
+        try {
+            return (Package) GET_DEFINED_PACKAGE.invoke(this, name);
+        }
+        catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Override to look only in the jars that hold the package, if the class
+     * path is indexed.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public URL findResource(String name) {
+        if (m_index == null || !ClassPathIndex.isIndexed(name)) {
+            return super.findResource(name);
+        }
+
+        final ClassPathIndex.Jar[] jars = m_index.jarsFor(name);
+
+        if (jars == null) {
+            return null;
+        }
+
+        try {
+            for (ClassPathIndex.Jar jar : jars) {
+                if (jar.isMultiRelease()) {
+                    return super.findResource(name);
+                }
+            }
+
+            for (ClassPathIndex.Jar jar : jars) {
+                if (jar.getEntry(name) != null) {
+                    return jar.resourceURL(name);
+                }
+            }
+        }
+        catch (IOException e) {
+            return super.findResource(name);
+        }
+
+        return null;
+    }
+
+    /**
+     * Override to look only in the jars that hold the package, if the class
+     * path is indexed.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (m_index == null || !ClassPathIndex.isIndexed(name)) {
+            return super.findResources(name);
+        }
+
+        final ClassPathIndex.Jar[] jars = m_index.jarsFor(name);
+
+        if (jars == null) {
+            return Collections.emptyEnumeration();
+        }
+
+        final List<URL> result = new ArrayList<URL>(jars.length);
+
+        for (ClassPathIndex.Jar jar : jars) {
+            if (jar.isMultiRelease()) {
+                return super.findResources(name);
+            }
+
+            if (jar.getEntry(name) != null) {
+                result.add(jar.resourceURL(name));
+            }
+        }
+
+        return enumeration(result);
+    }
+
+    /**
+     * Override to release the jars opened for the class path index, and
+     * discard cached resource lookups.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        m_resourceCache.close();
+        m_resourceListCache.close();
+
+        try {
+            if (m_index != null) {
+                m_index.close();
             }
         }
+        finally {
+            super.close();
+        }
+    }
+
+    /**
+     * @return The number of classes loaded from the grandparent class loader.
+     */
+    public long getGrandparentHitCount() {
+        return m_statistics.getClassGrandparentHitCount();
+    }
+
+    /**
+     * @return The number of classes the grandparent class loader was asked
+     *         for, but failed to load.
+     */
+    public long getGrandparentMissCount() {
+        return m_statistics.getClassGrandparentMissCount();
+    }
+
+    /**
+     * @return The number of times the grandparent class loader was not asked
+     *         for a class because it had previously failed to load it.
+     */
+    public long getGrandparentMissAvoidedCount() {
+        return m_statistics.getClassGrandparentMissAvoidedCount();
+    }
 
-        return super.getResources(name);
+    /**
+     * Start recording the names of the classes defined by this loader.
+     */
+    void recordDefinedClasses() {
+        m_definedClasses = new ConcurrentLinkedQueue<String>();
     }
 
-    private static class Classes {
+    /**
+     * Stop recording the names of the classes defined by this loader.
+     *
+     * @return The names of the classes defined since
+     *         {@link #recordDefinedClasses()} was called, in the order they
+     *         were defined.
+     */
+    List<String> stopRecordingDefinedClasses() {
+        final Queue<String> definedClasses = m_definedClasses;
+        m_definedClasses = null;
+
+        return definedClasses == null ?
+            Collections.<String>emptyList() : new ArrayList<String>(definedClasses);
+    }
+
+    /**
+     * @return Counters and timers for the lookups made through this class
+     *         loader.
+     */
+    ClassLoadingStatistics getStatistics() {
+        return m_statistics;
+    }
+
+    /**
+     * Bounded cache of resource lookups, keyed by route and name. Once full,
+     * further lookups are not cached.
+     */
+    private static final class ResourceCache {
+        private final Map<Route, ConcurrentHashMap<String, URL[]>> m_entries =
+            new EnumMap<Route, ConcurrentHashMap<String, URL[]>>(Route.class);
+        private final AtomicInteger m_size = new AtomicInteger();
+        private final int m_capacity;
+        private volatile boolean m_closed;
+
+        ResourceCache(int capacity) {
+            m_capacity = capacity;
+
+            for (Route route : Route.values()) {
+                m_entries.put(route, new ConcurrentHashMap<String, URL[]>());
+            }
+        }
+
+        URL[] get(Route route, String name) {
+            return m_entries.get(route).get(name);
+        }
+
+        void put(Route route, String name, URL[] urls) {
+            if (!m_closed && m_size.get() < m_capacity &&
+                m_entries.get(route).putIfAbsent(name, urls) == null) {
+                m_size.incrementAndGet();
+            }
+        }
+
+        void close() {
+            m_closed = true;
+
+            for (Map<String, URL[]> entries : m_entries.values()) {
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * A set of class or resource names, matched either exactly or by prefix.
+     *
+     * <p>
+     * Prefixes are compiled into a character trie so that matching is a single
+     * walk over the name with no allocation. Resource names are matched against
+     * the prefixes with each '/' treated as '.'.
+     * </p>
+     */
+    static final class Classes {
         private final Set<String> m_classNames = new HashSet<String>();
-        private final Set<String> m_prefixes = new HashSet<String>();
+        private final Node m_prefixes = new Node();
 
         public Classes(Set<String> wildcardNames) {
 
@@ -281,7 +845,7 @@ public class BlockingClassLoader extends URLClassLoader {
                 final int index = name.indexOf('*');
 
                 if (index >= 0) {
-                    m_prefixes.add(name.substring(0, index));
+                    m_prefixes.add(name, index);
                 }
                 else {
                     m_classNames.add(name);
@@ -290,19 +854,82 @@ public class BlockingClassLoader extends URLClassLoader {
         }
 
         public boolean matches(String name, boolean isResource) {
-            final String packageName = isResource ? name.replace('/', '.') : name;
 
             if (m_classNames.contains(name)) {
                 return true;
             }
 
-            for (String prefix : m_prefixes) {
-                if (packageName.startsWith(prefix)) {
-                    return true;
+            Node node = m_prefixes;
+            final int length = name.length();
+
+            for (int i = 0; !node.m_terminal; ++i) {
+                if (i == length) {
+                    return false;
                 }
+
+                final char c = name.charAt(i);
+
+                node = node.child(isResource && c == '/' ? '.' : c);
+
+                if (node == null) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Trie node. Children are held in parallel arrays, sorted by
+         * character; the fan out of package names is small, so the arrays
+         * stay short.
+         */
+        private static final class Node {
+            private char[] m_keys = new char[0];
+            private Node[] m_children = new Node[0];
+            private boolean m_terminal;
+
+            void add(String prefix, int length) {
+                Node node = this;
+
+                for (int i = 0; i < length && !node.m_terminal; ++i) {
+                    node = node.childOrCreate(prefix.charAt(i));
+                }
+
+                // A shorter prefix already covers everything below here.
+                node.m_terminal = true;
+                node.m_keys = new char[0];
+                node.m_children = new Node[0];
+            }
+
+            Node child(char c) {
+                final int i = Arrays.binarySearch(m_keys, c);
+                return i >= 0 ? m_children[i] : null;
             }
 
-            return false;
+            private Node childOrCreate(char c) {
+                int i = Arrays.binarySearch(m_keys, c);
+
+                if (i < 0) {
+                    i = -i - 1;
+
+                    final char[] keys = new char[m_keys.length + 1];
+                    final Node[] children = new Node[m_children.length + 1];
+
+                    System.arraycopy(m_keys, 0, keys, 0, i);
+                    System.arraycopy(m_children, 0, children, 0, i);
+                    System.arraycopy(m_keys, i, keys, i + 1, m_keys.length - i);
+                    System.arraycopy(m_children, i, children, i + 1, m_children.length - i);
+
+                    keys[i] = c;
+                    children[i] = new Node();
+
+                    m_keys = keys;
+                    m_children = children;
+                }
+
+                return m_children[i];
+            }
         }
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * Stops servers within a time limit.
+ *
+ * <p>
+ * A stop has two phases. In the drain phase the server is asked to stop
+ * gracefully, closing its client sessions, and is given up to the drain
+ * timeout to do so. If it has not stopped by then, the stop is forced: a
+ * forked server's JVM is killed, and the thread stopping an embedded server
+ * is interrupted. The time spent in each phase is logged.
+ * </p>
+ *
+ * <p>
+ * A server that is still running after the stop has been forced may still
+ * hold its ports, so the stop fails. An embedded server's resources, such
+ * as its class loader, are only released once its stop has finished, so
+ * they are not closed underneath a server that is still stopping.
+ * </p>
+ */
+final class BoundedStop {
+
+    /**
+     * Drain timeout used for servers that are stopped when the session ends,
+     * rather than by a stop execution.
+     */
+    static final long DEFAULT_DRAIN_TIMEOUT = 30000;
+
+    /**
+     * Number of milliseconds to wait for a forced stop.
+     */
+    private static final long FORCE_TIMEOUT = 5000;
+
+    /**
+     * Releases the resources of an embedded server once its stop has
+     * finished.
+     */
+    interface Release {
+        /**
+         * @param gracefully Whether the server stopped gracefully
+         */
+        void stopped(boolean gracefully);
+    }
+
+    private BoundedStop() {
+    }
+
+    /**
+     * Stop an embedded server.
+     *
+     * @param log Where to log the phases, or {@code null}
+     * @param release Called once the stop has finished, however it finished:
+     *        before this method returns or throws, or, if the stop is still
+     *        running after it has been forced, on the stopping thread when
+     *        it finishes
+     * @return {@code true} if the server stopped gracefully, {@code false}
+     *         if the stop was forced
+     * @throws TimeoutException If the server is still stopping after the
+     *         stop was forced
+     * @throws Exception If the server failed to stop
+     */
+    static boolean stop(EmbeddedDiffusion server,
+                        String description,
+                        long drainTimeout,
+                        Log log,
+                        Release release) throws Exception {
+
+        final long start = System.nanoTime();
+        final CompletableFuture<Void> stop = new CompletableFuture<>();
+        final Thread thread = new Thread(() -> {
+            try {
+                server.stop();
+                stop.complete(null);
+            }
+            catch (Throwable t) {
+                stop.completeExceptionally(t);
+            }
+        }, "diffusion-stop");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            stop.get(drainTimeout, TimeUnit.MILLISECONDS);
+            info(log, "Drained and stopped " + description + " in " + millisSince(start) + "ms");
+            release.stopped(true);
+            return true;
+        }
+        catch (TimeoutException e) {
+            warn(log, "Drain timeout of " + drainTimeout + "ms passed before " + description +
+                " stopped, forcing it to stop");
+        }
+        catch (ExecutionException e) {
+            release.stopped(false);
+            throw unwrap(e);
+        }
+        catch (InterruptedException e) {
+            releaseWhenStopped(stop, release);
+            throw e;
+        }
+
+        final long force = System.nanoTime();
+        thread.interrupt();
+
+        try {
+            stop.get(FORCE_TIMEOUT, TimeUnit.MILLISECONDS);
+            warn(log, "Forced " + description + " to stop in " + millisSince(force) + "ms");
+        }
+        catch (TimeoutException e) {
+            releaseWhenStopped(stop, release);
+
+            throw new TimeoutException(description + " is still stopping " + millisSince(force) +
+                "ms after it was forced to stop, and may still hold its ports");
+        }
+        catch (ExecutionException e) {
+            // An interrupted stop is expected to fail.
+            warn(log, "Forced " + description + " to stop in " + millisSince(force) + "ms: " + e.getCause());
+        }
+        catch (InterruptedException e) {
+            releaseWhenStopped(stop, release);
+            throw e;
+        }
+
+        release.stopped(false);
+        return false;
+    }
+
+    private static void releaseWhenStopped(CompletableFuture<Void> stop, Release release) {
+        stop.whenComplete((result, failure) -> release.stopped(false));
+    }
+
+    /**
+     * Stop a server in a forked JVM.
+     *
+     * @param log Where to log the phases, or {@code null}
+     * @return {@code true} if the server stopped gracefully, {@code false}
+     *         if its JVM was killed
+     * @throws TimeoutException If the JVM is still running after it was
+     *         killed
+     */
+    static boolean stop(ForkedServer server,
+                        String description,
+                        long drainTimeout,
+                        Log log) throws InterruptedException, TimeoutException {
+
+        final long start = System.nanoTime();
+
+        if (server.stop(drainTimeout)) {
+            info(log, "Drained and stopped " + description + " in " + millisSince(start) + "ms");
+            return true;
+        }
+
+        warn(log, "Drain timeout of " + drainTimeout + "ms passed before " + description +
+            " stopped, killing it, see " + server.getLog());
+
+        final long force = System.nanoTime();
+
+        if (!server.kill(FORCE_TIMEOUT)) {
+            throw new TimeoutException(description + " is still running " + millisSince(force) +
+                "ms after it was killed, and may still hold its ports");
+        }
+
+        warn(log, "Killed " + description + " in " + millisSince(force) + "ms");
+        return false;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        final Throwable cause = e.getCause();
+
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return e;
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void info(Log log, String message) {
+        if (log != null) {
+            log.info(message);
+        }
+    }
+
+    private static void warn(Log log, String message) {
+        if (log != null) {
+            log.warn(message);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An Application Class-Data Sharing archive of the classes a forked server
+ * loads.
+ *
+ * <p>
+ * The archive is named after a digest of the JDK, the JVM options and the
+ * contents of the jars on the class path, so a change to any of them
+ * selects a different archive. If there is no archive, the server's JVM is
+ * asked to create one when it exits, with {@code -XX:ArchiveClassesAtExit};
+ * otherwise it is started with {@code -XX:SharedArchiveFile}. The archive
+ * is written to a temporary file and renamed into place once the JVM has
+ * exited cleanly, so an incomplete archive is never used.
+ * </p>
+ *
+ * <p>
+ * Dynamic archives need JDK 13 or later.
+ * </p>
+ */
+final class ClassDataSharing {
+
+    private static final Pattern JAVA_VERSION = Pattern.compile("^JAVA_VERSION=\"([^\"]*)\"", Pattern.MULTILINE);
+
+    /**
+     * Digests of jars, by path, size and modification time, so each jar is
+     * only read once per JVM.
+     */
+    private static final Map<String, String> JAR_DIGESTS =
+        Collections.synchronizedMap(new HashMap<String, String>());
+
+    private final File archive;
+    private final File temporary;
+
+    private ClassDataSharing(File archive) {
+        this.archive = archive;
+        this.temporary = archive.exists() ?
+            null :
+            new File(archive.getPath() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    /**
+     * Choose the archive for a forked JVM.
+     *
+     * @param directory The directory that holds the archives
+     * @param javaHome The home directory of the forked JVM's JDK
+     * @param jvmOptions The options of the forked JVM, other than the class
+     *        path
+     * @param classPath The class path of the forked JVM
+     * @return The archive, or {@code null} if the JDK does not support
+     *         dynamic archives
+     */
+    static ClassDataSharing of(File directory,
+                               File javaHome,
+                               List<String> jvmOptions,
+                               List<File> classPath) throws IOException {
+
+        final File releaseFile = new File(javaHome, "release");
+
+        if (!releaseFile.isFile()) {
+            return null;
+        }
+
+        final String release = new String(Files.readAllBytes(releaseFile.toPath()), UTF_8);
+
+        if (majorVersion(release) < 13) {
+            return null;
+        }
+
+        final MessageDigest digest = Digests.create("SHA-256");
+        update(digest, javaHome.getCanonicalPath());
+        update(digest, release);
+
+        for (String option : jvmOptions) {
+            update(digest, option);
+        }
+
+        for (File file : classPath) {
+            update(digest, file.getCanonicalPath());
+            update(digest, jarDigest(file));
+        }
+
+        Files.createDirectories(directory.toPath());
+
+        return new ClassDataSharing(new File(directory, Digests.hex(digest.digest()) + ".jsa"));
+    }
+
+    /**
+     * @return The major version in the {@code JAVA_VERSION} of a JDK's
+     *         release file, or zero if it cannot be found
+     */
+    static int majorVersion(String release) {
+        final Matcher matcher = JAVA_VERSION.matcher(release);
+
+        if (!matcher.find()) {
+            return 0;
+        }
+
+        final String[] parts = matcher.group(1).split("[.\\-+_]");
+
+        try {
+            final int first = Integer.parseInt(parts[0]);
+            return first == 1 && parts.length > 1 ? Integer.parseInt(parts[1]) : first;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether the archive exists, rather than being created by this JVM.
+     */
+    boolean exists() {
+        return temporary == null;
+    }
+
+    File getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return The JVM option that uses or creates the archive
+     */
+    String jvmOption() {
+        return exists() ?
+            "-XX:SharedArchiveFile=" + archive.getAbsolutePath() :
+            "-XX:ArchiveClassesAtExit=" + temporary.getAbsolutePath();
+    }
+
+    /**
+     * Move a newly created archive into place once the JVM that created it
+     * has exited.
+     *
+     * @param exitedCleanly Whether the JVM exited by itself; if not, the
+     *        archive may be incomplete and is discarded
+     * @return {@code true} if an archive was moved into place
+     */
+    boolean complete(boolean exitedCleanly) throws IOException {
+        if (temporary == null || !temporary.exists()) {
+            return false;
+        }
+
+        try {
+            if (exitedCleanly) {
+                Files.move(temporary.toPath(), archive.toPath(), ATOMIC_MOVE);
+                return true;
+            }
+
+            return false;
+        }
+        catch (FileAlreadyExistsException e) {
+            // Another build created the archive first.
+            return false;
+        }
+        finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    private static String jarDigest(File file) throws IOException {
+        if (!file.isFile()) {
+            // A directory of classes cannot be archived, but its name is
+            // still part of the key.
+            return "";
+        }
+
+        final String key = file.getCanonicalPath() + " " + file.length() + " " + file.lastModified();
+        final String cached = JAR_DIGESTS.get(key);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        final String result = Digests.digest(file.toPath(), "SHA-256");
+        JAR_DIGESTS.put(key, result);
+        return result;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(UTF_8));
+        // Separate the values, so that they cannot run together.
+        digest.update((byte) 0);
+    }
+}
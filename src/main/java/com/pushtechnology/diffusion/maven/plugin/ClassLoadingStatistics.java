@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.pushtechnology.diffusion.maven.plugin.BlockingClassLoader.Route;
+
+/**
+ * Counters and timers for the lookups made through a
+ * {@link BlockingClassLoader}.
+ *
+ * <p>
+ * Lookup times are inclusive: the time to load a class includes the time to
+ * load any classes it depends on that are requested while it is defined.
+ * Bytes of class data are only counted for classes read through the class
+ * path index.
+ * </p>
+ */
+final class ClassLoadingStatistics {
+
+    /**
+     * The number of slowest lookups to keep.
+     */
+    static final int SLOWEST = 25;
+
+    private final Map<Route, Timer> classRoutes = timers();
+    private final Map<Route, Timer> resourceRoutes = timers();
+
+    private final Timer classGrandparentHits = new Timer();
+    private final Timer classGrandparentMisses = new Timer();
+    private final LongAdder classGrandparentMissesAvoided = new LongAdder();
+    private final Timer resourceGrandparentHits = new Timer();
+    private final Timer resourceGrandparentMisses = new Timer();
+    private final LongAdder resourceCacheHits = new LongAdder();
+
+    private final LongAdder classesDefined = new LongAdder();
+    private final LongAdder bytesDefined = new LongAdder();
+
+    private final PriorityQueue<Lookup> slowest = new PriorityQueue<>();
+    private volatile long slowestThreshold;
+
+    void classLoaded(Route route, String name, long nanos) {
+        classRoutes.get(route).record(nanos);
+        slow("class", route, name, nanos);
+    }
+
+    void resourceFound(Route route, String name, long nanos) {
+        resourceRoutes.get(route).record(nanos);
+        slow("resource", route, name, nanos);
+    }
+
+    void resourceCacheHit() {
+        resourceCacheHits.increment();
+    }
+
+    void classGrandparentHit(long nanos) {
+        classGrandparentHits.record(nanos);
+    }
+
+    void classGrandparentMiss(long nanos) {
+        classGrandparentMisses.record(nanos);
+    }
+
+    void classGrandparentMissAvoided() {
+        classGrandparentMissesAvoided.increment();
+    }
+
+    void resourceGrandparentHit(long nanos) {
+        resourceGrandparentHits.record(nanos);
+    }
+
+    void resourceGrandparentMiss(long nanos) {
+        resourceGrandparentMisses.record(nanos);
+    }
+
+    void classDefined() {
+        classesDefined.increment();
+    }
+
+    /**
+     * Record the size of a class read through the class path index. Classes
+     * found by {@link java.net.URLClassLoader} are counted by
+     * {@link #classDefined()}, but their size is not known.
+     */
+    void classBytesDefined(int bytes) {
+        bytesDefined.add(bytes);
+    }
+
+    long getClassGrandparentHitCount() {
+        return classGrandparentHits.count.sum();
+    }
+
+    long getClassGrandparentMissCount() {
+        return classGrandparentMisses.count.sum();
+    }
+
+    long getClassGrandparentMissAvoidedCount() {
+        return classGrandparentMissesAvoided.sum();
+    }
+
+    long getClassCount(Route route) {
+        return classRoutes.get(route).count.sum();
+    }
+
+    long getResourceCount(Route route) {
+        return resourceRoutes.get(route).count.sum();
+    }
+
+    long getResourceCacheHitCount() {
+        return resourceCacheHits.sum();
+    }
+
+    long getBytesDefined() {
+        return bytesDefined.sum();
+    }
+
+    /**
+     * @return The slowest lookups, slowest first.
+     */
+    List<Lookup> getSlowest() {
+        final List<Lookup> result;
+
+        synchronized (slowest) {
+            result = new ArrayList<>(slowest);
+        }
+
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Write the statistics as JSON.
+     */
+    void writeReport(File file) throws IOException {
+        try (JsonWriter json = JsonWriter.create(file)) {
+            json.beginObject();
+
+            json.name("classes").beginObject();
+            writeRoutes(json, classRoutes);
+            writeTimer(json, "grandparentHits", classGrandparentHits);
+            writeTimer(json, "grandparentMisses", classGrandparentMisses);
+            json.property("grandparentMissesAvoided", classGrandparentMissesAvoided.sum());
+            json.property("defined", classesDefined.sum());
+            json.property("bytesDefined", bytesDefined.sum());
+            json.endObject();
+
+            json.name("resources").beginObject();
+            writeRoutes(json, resourceRoutes);
+            writeTimer(json, "grandparentHits", resourceGrandparentHits);
+            writeTimer(json, "grandparentMisses", resourceGrandparentMisses);
+            json.property("cacheHits", resourceCacheHits.sum());
+            json.endObject();
+
+            json.name("slowest").beginArray();
+
+            for (Lookup lookup : getSlowest()) {
+                json.beginObject()
+                    .property("kind", lookup.kind)
+                    .property("route", name(lookup.route))
+                    .property("name", lookup.name)
+                    .property("nanos", lookup.nanos)
+                    .endObject();
+            }
+
+            json.endArray();
+
+            json.endObject();
+        }
+    }
+
+    private static void writeRoutes(JsonWriter json, Map<Route, Timer> routes)
+        throws IOException {
+
+        json.name("routes").beginObject();
+
+        for (Map.Entry<Route, Timer> entry : routes.entrySet()) {
+            writeTimer(json, name(entry.getKey()), entry.getValue());
+        }
+
+        json.endObject();
+    }
+
+    private static void writeTimer(JsonWriter json, String name, Timer timer)
+        throws IOException {
+
+        json.name(name).beginObject()
+            .property("count", timer.count.sum())
+            .property("nanos", timer.nanos.sum())
+            .endObject();
+    }
+
+    private static String name(Route route) {
+        return route.name().toLowerCase(Locale.ROOT);
+    }
+
+    private void slow(String kind, Route route, String name, long nanos) {
+        if (nanos <= slowestThreshold) {
+            return;
+        }
+
+        synchronized (slowest) {
+            slowest.add(new Lookup(kind, route, name, nanos));
+
+            if (slowest.size() > SLOWEST) {
+                slowest.remove();
+                slowestThreshold = slowest.peek().nanos;
+            }
+        }
+    }
+
+    private static Map<Route, Timer> timers() {
+        final Map<Route, Timer> result = new EnumMap<>(Route.class);
+
+        for (Route route : Route.values()) {
+            result.put(route, new Timer());
+        }
+
+        return result;
+    }
+
+    private static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+        }
+    }
+
+    /**
+     * A single timed lookup.
+     */
+    static final class Lookup implements Comparable<Lookup> {
+        private final String kind;
+        private final Route route;
+        private final String name;
+        private final long nanos;
+
+        Lookup(String kind, Route route, String name, long nanos) {
+            this.kind = kind;
+            this.route = route;
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public int compareTo(Lookup other) {
+            return Long.compare(nanos, other.nanos);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Index from package directory to the jars that contain entries in that
+ * directory, in class path order.
+ *
+ * <p>
+ * Only class paths made up entirely of jar files are indexed; otherwise
+ * {@link #build} returns {@code null} and the caller should fall back to
+ * searching the class path. The index may be cached in a file, keyed by a
+ * checksum of the path, size and modification time of each jar.
+ * </p>
+ */
+final class ClassPathIndex {
+
+    private static final String FORMAT = "diffusion-class-path-index 1";
+
+    private static final String VERSIONS = "META-INF/versions/";
+
+    private final List<Jar> jars;
+    private final Map<String, Jar[]> packages;
+
+    private ClassPathIndex(List<Jar> jars, Map<String, Jar[]> packages) {
+        this.jars = jars;
+        this.packages = packages;
+    }
+
+    /**
+     * Build an index for a class path.
+     *
+     * @param urls The class path. Duplicates are ignored.
+     * @param cacheFile File to read the index from, and to write it to if it
+     *        is missing or out of date. May be {@code null}.
+     * @return The index, or {@code null} if the class path contains anything
+     *         other than jar files, or the jars could not be read.
+     */
+    static ClassPathIndex build(URL[] urls, File cacheFile) {
+        final List<Jar> jars = new ArrayList<>();
+
+        for (URL url : new LinkedHashSet<>(Arrays.asList(urls))) {
+            final File file = toFile(url);
+
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+
+            jars.add(new Jar(url, file));
+        }
+
+        try {
+            final String checksum = checksum(urls);
+
+            if (cacheFile != null) {
+                final ClassPathIndex cached = read(cacheFile, checksum, jars);
+
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            final ClassPathIndex index = scan(jars);
+
+            if (cacheFile != null) {
+                index.write(cacheFile, checksum);
+            }
+
+            return index;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether lookups of a resource name can be answered by the index. Names
+     * that {@link JarFile} would not find verbatim are left to the class
+     * path.
+     */
+    static boolean isIndexed(String name) {
+        return !name.isEmpty() && name.charAt(0) != '/' && !name.endsWith("/");
+    }
+
+    /**
+     * Find the jars that have entries in the same directory as a resource.
+     *
+     * @return The jars in class path order, or {@code null} if no jar has
+     *         the directory.
+     */
+    Jar[] jarsFor(String resourceName) {
+        final int slash = resourceName.lastIndexOf('/');
+        return packages.get(slash < 0 ? "" : resourceName.substring(0, slash));
+    }
+
+    void close() throws IOException {
+        IOException failure = null;
+
+        for (Jar jar : jars) {
+            try {
+                jar.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static ClassPathIndex scan(List<Jar> jars) throws IOException {
+        final Map<String, List<Jar>> packages = new HashMap<>();
+
+        for (Jar jar : jars) {
+            final JarFile jarFile = jar.jarFile();
+            final Enumeration<JarEntry> entries = jarFile.entries();
+
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                final String name = entry.getName();
+
+                addOwner(packages, name, jar);
+
+                if (name.startsWith(VERSIONS)) {
+                    // Also index versioned entries under their unversioned
+                    // name, so the jar is found for multi-release lookups.
+                    final int slash = name.indexOf('/', VERSIONS.length());
+
+                    if (slash > 0) {
+                        addOwner(packages, name.substring(slash + 1), jar);
+                    }
+                }
+            }
+
+            final Manifest manifest = jarFile.getManifest();
+
+            jar.multiRelease = manifest != null &&
+                "true".equalsIgnoreCase(
+                    manifest.getMainAttributes().getValue("Multi-Release"));
+        }
+
+        final Map<String, Jar[]> result = new HashMap<>(packages.size() * 2);
+
+        for (Map.Entry<String, List<Jar>> entry : packages.entrySet()) {
+            result.put(entry.getKey(),
+                entry.getValue().toArray(new Jar[entry.getValue().size()]));
+        }
+
+        return new ClassPathIndex(jars, result);
+    }
+
+    private static void addOwner(Map<String, List<Jar>> packages,
+                                 String name,
+                                 Jar jar) {
+        final int slash = name.lastIndexOf('/');
+        final String directory = slash < 0 ? "" : name.substring(0, slash);
+
+        List<Jar> owners = packages.get(directory);
+
+        if (owners == null) {
+            owners = new ArrayList<>(1);
+            packages.put(directory, owners);
+        }
+
+        if (!owners.contains(jar)) {
+            owners.add(jar);
+        }
+    }
+
+    private static ClassPathIndex read(File cacheFile,
+                                       String checksum,
+                                       List<Jar> jars) {
+
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader =
+                 Files.newBufferedReader(cacheFile.toPath(), UTF_8)) {
+
+            if (!FORMAT.equals(reader.readLine()) ||
+                !checksum.equals(reader.readLine())) {
+                return null;
+            }
+
+            for (Jar jar : jars) {
+                jar.multiRelease = Boolean.parseBoolean(reader.readLine());
+            }
+
+            final Map<String, Jar[]> packages = new HashMap<>();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                final Jar[] owners = new Jar[fields.length - 1];
+
+                for (int i = 0; i < owners.length; ++i) {
+                    owners[i] = jars.get(Integer.parseInt(fields[i + 1]));
+                }
+
+                packages.put(fields[0], owners);
+            }
+
+            return new ClassPathIndex(jars, packages);
+        }
+        catch (IOException | RuntimeException e) {
+            // Treat a corrupt cache as missing.
+            return null;
+        }
+    }
+
+    private void write(File cacheFile, String checksum) {
+        final File directory = cacheFile.getAbsoluteFile().getParentFile();
+
+        try {
+            Files.createDirectories(directory.toPath());
+
+            final File temporary =
+                File.createTempFile(cacheFile.getName(), ".tmp", directory);
+
+            try {
+                try (Writer writer =
+                         Files.newBufferedWriter(temporary.toPath(), UTF_8)) {
+                    writer.write(FORMAT + "\n" + checksum + "\n");
+
+                    for (Jar jar : jars) {
+                        writer.write(jar.multiRelease + "\n");
+                    }
+
+                    for (Map.Entry<String, Jar[]> entry : packages.entrySet()) {
+                        writer.write(entry.getKey());
+
+                        for (Jar jar : entry.getValue()) {
+                            writer.write("\t" + jars.indexOf(jar));
+                        }
+
+                        writer.write("\n");
+                    }
+                }
+
+                Files.move(temporary.toPath(), cacheFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        }
+        catch (IOException e) {
+            // The cache is an optimisation; the index is still usable.
+        }
+    }
+
+    /**
+     * Checksum the attributes of the files on a class path. Hashing the
+     * contents would cost more than the work that the checksum lets callers
+     * skip.
+     *
+     * @param urls The class path. Duplicates are ignored.
+     * @return A checksum of the path, size and modification time of each file.
+     */
+    static String checksum(URL[] urls) {
+        final MessageDigest digest = Digests.create("SHA-1");
+
+        for (URL url : new LinkedHashSet<>(Arrays.asList(urls))) {
+            final File file = toFile(url);
+
+            if (file == null) {
+                digest.update((url.toExternalForm() + "\n").getBytes(UTF_8));
+            }
+            else {
+                digest.update((file.getAbsolutePath() + "\n" +
+                               file.length() + "\n" +
+                               file.lastModified() + "\n").getBytes(UTF_8));
+            }
+        }
+
+        return Digests.hex(digest.digest());
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+
+        try {
+            return new File(url.toURI());
+        }
+        catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        if (size < 0) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+
+            return out.toByteArray();
+        }
+
+        final byte[] result = new byte[size];
+        int length = 0;
+
+        while (length < size) {
+            final int n = in.read(result, length, size - length);
+
+            if (n < 0) {
+                throw new EOFException();
+            }
+
+            length += n;
+        }
+
+        return result;
+    }
+
+    /**
+     * A jar on the class path. The {@link JarFile} is opened on first use,
+     * through the {@link SharedJarCache}. Once closed, the jar is not
+     * opened again: lookups fail with an {@link IOException}, so that
+     * threads of a server that outlive its class loader do not reacquire
+     * the jar.
+     */
+    static final class Jar {
+        private final URL url;
+        private final File file;
+        private volatile boolean multiRelease;
+        private SharedJarCache.Handle handle;
+        private Manifest manifest;
+        private boolean manifestRead;
+        private boolean closed;
+
+        private Jar(URL url, File file) {
+            this.url = url;
+            this.file = file;
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        /**
+         * Whether the jar has versioned entries. The index records the
+         * unversioned names, so lookups for these jars should be left to
+         * the class path.
+         */
+        boolean isMultiRelease() {
+            return multiRelease;
+        }
+
+        private synchronized SharedJarCache.Handle handle() throws IOException {
+            if (closed) {
+                throw new IOException(url + " is closed");
+            }
+
+            if (handle == null) {
+                handle = SharedJarCache.acquire(file);
+            }
+
+            return handle;
+        }
+
+        JarFile jarFile() throws IOException {
+            return handle().jarFile();
+        }
+
+        JarEntry getEntry(String name) throws IOException {
+            return jarFile().getJarEntry(name);
+        }
+
+        /**
+         * Read an entry. The code signers of the entry are available once
+         * this method has returned.
+         */
+        byte[] read(JarEntry entry) throws IOException {
+            try (InputStream in = jarFile().getInputStream(entry)) {
+                return readFully(in, (int) entry.getSize());
+            }
+        }
+
+        synchronized Manifest getManifest() throws IOException {
+            if (!manifestRead) {
+                manifest = jarFile().getManifest();
+                manifestRead = true;
+            }
+
+            return manifest;
+        }
+
+        /**
+         * Build the URL that {@link java.net.URLClassLoader} would return for
+         * an entry.
+         */
+        URL resourceURL(String name) throws MalformedURLException {
+            try {
+                return new URL("jar:" + url.toExternalForm() + "!/" +
+                               new URI(null, null, name, null).getRawPath());
+            }
+            catch (URISyntaxException e) {
+                throw new MalformedURLException(e.getMessage());
+            }
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+
+            if (handle != null) {
+                handle.close();
+                handle = null;
+                manifest = null;
+                manifestRead = false;
+            }
+        }
+    }
+}
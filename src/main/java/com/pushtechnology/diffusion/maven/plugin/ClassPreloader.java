@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines the classes recorded during an earlier server start on a pool of
+ * background threads, ahead of the server asking for them.
+ *
+ * <p>
+ * The class list is stored with a checksum of the server class path, and
+ * ignored if the class path has changed since it was recorded.
+ * </p>
+ */
+final class ClassPreloader {
+
+    private static final String FORMAT = "diffusion-preload-classes 1";
+
+    private final List<String> classNames;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final ExecutorService executor;
+
+    private ClassPreloader(List<String> classNames, int threads) {
+        this.classNames = classNames;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread =
+                    new Thread(runnable, "diffusion-preload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start preloading the classes listed in a file into a class loader.
+     *
+     * @return The preloader, or {@code null} if there is no class list that
+     *         matches the class loader's class path.
+     */
+    static ClassPreloader start(File classList,
+                                BlockingClassLoader classLoader,
+                                int threads) throws IOException {
+
+        final List<String> classNames = read(classList, checksum(classLoader));
+
+        if (classNames == null) {
+            return null;
+        }
+
+        final ClassPreloader preloader = new ClassPreloader(classNames, threads);
+
+        for (int i = 0; i < threads; ++i) {
+            preloader.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    preloader.preload(classLoader);
+                }
+            });
+        }
+
+        return preloader;
+    }
+
+    /**
+     * Stop a class loader recording the classes it defines, and write them
+     * to a file.
+     */
+    static void record(File classList, BlockingClassLoader classLoader)
+        throws IOException {
+
+        final File directory = classList.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+
+        final File temporary =
+            File.createTempFile(classList.getName(), ".tmp", directory);
+
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary.toPath(), UTF_8)) {
+                writer.write(FORMAT + "\n" + checksum(classLoader) + "\n");
+
+                for (String name : classLoader.stopRecordingDefinedClasses()) {
+                    writer.write(name + "\n");
+                }
+            }
+
+            Files.move(temporary.toPath(), classList.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Stop preloading. Classes that are being defined are completed.
+     */
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    int getClassCount() {
+        return classNames.size();
+    }
+
+    int getLoadedCount() {
+        return loaded.get();
+    }
+
+    private void preload(ClassLoader classLoader) {
+        int i;
+
+        while ((i = next.getAndIncrement()) < classNames.size() &&
+               !Thread.currentThread().isInterrupted()) {
+            try {
+                Class.forName(classNames.get(i), false, classLoader);
+                loaded.incrementAndGet();
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+                // The server will report the problem if it needs the class.
+            }
+        }
+    }
+
+    private static String checksum(BlockingClassLoader classLoader) {
+        return ClassPathIndex.checksum(classLoader.getURLs());
+    }
+
+    private static List<String> read(File classList, String checksum)
+        throws IOException {
+
+        if (!classList.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader =
+                 Files.newBufferedReader(classList.toPath(), UTF_8)) {
+
+            if (!FORMAT.equals(reader.readLine()) ||
+                !checksum.equals(reader.readLine())) {
+                return null;
+            }
+
+            final List<String> result = new ArrayList<>();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    result.add(line);
+                }
+            }
+
+            return Collections.unmodifiableList(result);
+        }
+    }
+}
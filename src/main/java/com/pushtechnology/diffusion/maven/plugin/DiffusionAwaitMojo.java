@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Waits for servers started in the background by the start goal to finish
+ * starting, and publishes their ports.
+ */
+@Mojo(
+    name = "await",
+    defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
+public class DiffusionAwaitMojo extends AbstractDiffusionMojo {
+
+    /**
+     * Ids of the servers to wait for, as given by the start goal's
+     * {@code serverId}. All the module's servers that are starting are
+     * waited for if none are given.
+     */
+    @Parameter(property = "diffusion.serverIds")
+    protected String[] serverIds;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip) {
+            getLog().info("Skipping Diffusion await: diffusion.skip==true");
+            return;
+        }
+
+        final List<String> ids = serverIds == null || serverIds.length == 0 ?
+            getServerRegistry().startingIds() : Arrays.asList(serverIds);
+
+        if (ids.isEmpty()) {
+            getLog().info("No Diffusion Server is starting in the background");
+            return;
+        }
+
+        awaitStarting(ids);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+
+/**
+ * A private view of a Diffusion installation for one server.
+ *
+ * <p>
+ * The overlay mirrors the installation's directories. Files in writable
+ * directories are copied, so the server can change them; all other files
+ * are hard links to the installation, which costs no space and little time.
+ * Files are copied instead if the file system does not support hard links,
+ * for example because the overlay is on a different device.
+ * </p>
+ */
+final class DiffusionHomeOverlay {
+
+    private DiffusionHomeOverlay() {
+    }
+
+    /**
+     * Create an overlay, replacing any left by an earlier run.
+     *
+     * @param home The Diffusion installation
+     * @param overlay The directory to create
+     * @param writableDirectories The top level directories of the
+     *        installation that the server writes to
+     */
+    static void create(final Path home,
+                       final Path overlay,
+                       final Set<String> writableDirectories) throws IOException {
+
+        create(home, overlay, writableDirectories, Files::createLink);
+    }
+
+    static void create(final Path home,
+                       final Path overlay,
+                       final Set<String> writableDirectories,
+                       final Linker linker) throws IOException {
+
+        delete(overlay);
+
+        Files.walkFileTree(home, new SimpleFileVisitor<Path>() {
+            private boolean linksSupported = true;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+                throws IOException {
+
+                Files.createDirectories(overlay.resolve(home.relativize(directory).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                throws IOException {
+
+                final Path relative = home.relativize(file);
+                final Path target = overlay.resolve(relative.toString());
+
+                if (linksSupported && !isWritable(relative)) {
+                    try {
+                        linker.link(target, file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    catch (UnsupportedOperationException | IOException e) {
+                        linksSupported = false;
+                    }
+                }
+
+                Files.copy(file, target, COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private boolean isWritable(Path relative) {
+                return relative.getNameCount() > 1 &&
+                    writableDirectories.contains(relative.getName(0).toString());
+            }
+        });
+    }
+
+    /**
+     * Creates hard links. Replaced by tests to simulate a file system that
+     * does not support them.
+     */
+    interface Linker {
+        void link(Path link, Path existing) throws IOException;
+    }
+
+    /**
+     * Delete an overlay. Deleting a hard link leaves the installation's
+     * file in place.
+     */
+    static void delete(Path overlay) throws IOException {
+        if (!Files.exists(overlay)) {
+            return;
+        }
+
+        Files.walkFileTree(overlay, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                throws IOException {
+
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e)
+                throws IOException {
+
+                if (e != null) {
+                    throw e;
+                }
+
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
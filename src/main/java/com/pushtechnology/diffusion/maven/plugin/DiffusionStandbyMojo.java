@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+
+/**
+ * Starts the session's pool of standby servers, so they are ready by the
+ * time the start goal of the first module runs. Takes the same
+ * configuration as the start goal, whose executions only use the pool's
+ * servers if their configuration matches.
+ */
+@Mojo(
+    name = "standby",
+    defaultPhase = LifecyclePhase.INITIALIZE)
+public class DiffusionStandbyMojo extends DiffusionStartMojo {
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping Diffusion standby: diffusion.skip==true");
+            return;
+        }
+
+        if (standbyServers <= 0 || session == null || fork) {
+            getLog().info("No standby Diffusion Servers are configured");
+            return;
+        }
+
+        PluginLog.setLog(getLog());
+        startStandbyPool();
+    }
+}
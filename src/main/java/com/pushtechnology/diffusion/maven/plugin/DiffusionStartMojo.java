@@ -18,35 +18,43 @@
 package com.pushtechnology.diffusion.maven.plugin;
 
 import static java.util.Arrays.asList;
-import static java.util.Collections.singleton;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import com.pushtechnology.diffusion.api.config.ConnectorConfig;
-import com.pushtechnology.diffusion.api.config.ServerConfig;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
 import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
 
 /**
  * Runs Diffusion directly from a Maven project from a binding to an execution
@@ -57,21 +65,119 @@ import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
     defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
 public class DiffusionStartMojo extends AbstractDiffusionMojo {
 
+    static final String CLIENT_CONNECTOR = "Client Connector";
+
+    static final String HTTP_CONNECTOR = "HTTP Connector";
+
+    static final String SSL_CONNECTOR = "SSL Connector";
+
+    /**
+     * A small subset of classes necessary for communicating with the
+     * Diffusion interface.
+     */
+    static final Set<String> SHARED_CLASSES = Collections.unmodifiableSet(new HashSet<>(asList(
+            EmbeddedDiffusion.class.getName(),
+            EmbeddedDiffusion.LifecycleListener.class.getName(),
+            EmbeddedDiffusion.State.class.getName(),
+            "com.pushtechnology.diffusion.api.conflation.*",
+            // Needed by Diffusion 6.7 and earlier:
+            "com.pushtechnology.diffusion.api.LogDescription",
+            "com.pushtechnology.diffusion.api.LogDescription$LogLevel",
+            "com.pushtechnology.diffusion.api.config.*",
+            // Allow JAXB to be packaged as a library.
+            "javax.xml.*",
+            "com.sun,*"
+    )));
+
     /**
      * Number of milliseconds to wait for the Diffusion server to start.
      */
     @Parameter(defaultValue = "60000")
     protected long serverStartTimeout = 60000;
 
+    /**
+     * Number of milliseconds after which a server that has not started is
+     * considered slow, and thread dumps of its threads are taken every
+     * slowStartDumpInterval. If the server then fails to start within
+     * serverStartTimeout, the dumps are written to
+     * {@code target/diffusion/start-timeout-<serverId>.json}. Zero disables
+     * the dumps.
+     */
+    @Parameter(property = "diffusion.slowStartThreshold", defaultValue = "30000")
+    protected long slowStartThreshold = 30000;
+
+    /**
+     * Number of milliseconds between the thread dumps of a slow server.
+     */
+    @Parameter(property = "diffusion.slowStartDumpInterval", defaultValue = "5000")
+    protected long slowStartDumpInterval = 5000;
+
     /**
      * Whether to wait for Diffusion server deployments to finish before declaring success
      */
     @Parameter(defaultValue = "true")
     protected boolean waitForDeployments = true;
 
+    /**
+     * How to check that the server's connectors accept connections before
+     * declaring success: {@code tcp} to open a TCP connection to each,
+     * {@code websocket} to also send a WebSocket upgrade request to those
+     * that are not secure, or {@code none}. The check is made whether or
+     * not {@code waitForDeployments} is set, and must succeed within
+     * serverStartTimeout. The time each connector took to become ready is
+     * logged.
+     */
+    @Parameter(property = "diffusion.readinessProbe", defaultValue = "tcp")
+    protected String readinessProbe = "tcp";
+
     @Parameter(property = "diffuson.home")
     protected String diffusionHome;
 
+    /**
+     * Coordinates of a Diffusion distribution archive to run, in the form
+     * {@code groupId:artifactId[:extension[:classifier]]:version}. The
+     * extension defaults to {@code zip}. The archive is resolved from the
+     * project's repositories and unpacked once into
+     * {@code distributionCacheDirectory}, then used as diffusion.home, and
+     * its {@code lib/diffusion.jar} replaces the plugin's own Diffusion
+     * dependency on the server class path. Ignored if diffusion.home is
+     * set. Optional.
+     *
+     * <p>
+     * The plugin itself still links against the Diffusion API, so the
+     * {@code com.pushtechnology.diffusion:diffusion} dependency (the
+     * system-scoped jar under DIFFUSION_HOME when the plugin is built) must
+     * still be available to load the plugin. The API classes shared with
+     * the server, such as {@code EmbeddedDiffusion}, come from that jar and
+     * must be compatible with the distribution.
+     * </p>
+     */
+    @Parameter(property = "diffusion.distribution")
+    protected String distribution;
+
+    /**
+     * Directory holding unpacked distributions, shared by all builds on the
+     * host. Each distribution is kept in a directory named after the
+     * SHA-256 digest of its archive.
+     */
+    @Parameter(property = "diffusion.distributionCacheDirectory",
+        defaultValue = "${user.home}/.m2/diffusion/distributions")
+    protected File distributionCacheDirectory;
+
+    @Component
+    protected RepositorySystem repositorySystem;
+
+    @Parameter(defaultValue = "${repositorySystemSession}", readonly = true, required = true)
+    protected RepositorySystemSession repositorySystemSession;
+
+    @Parameter(defaultValue = "${project.remoteProjectRepositories}", readonly = true)
+    protected List<RemoteRepository> remoteRepositories;
+
+    /**
+     * The unpacked distribution, once resolved.
+     */
+    private File distributionHome;
+
     /**
      * Comma-separated list of Diffusion XML configuration files whose contents
      * will be applied before any plugin configuration. Optional.
@@ -97,6 +203,219 @@ public class DiffusionStartMojo extends AbstractDiffusionMojo {
     @Parameter(defaultValue = "32768")
     protected int maxMessageSize;
 
+    /**
+     * Whether to run the server on free ports chosen by the operating
+     * system, instead of {@code port} and {@code sslPort}, so that builds
+     * on the same host do not collide. The ports are reserved with lock
+     * files in {@code portLockDirectory} until the server has started, like
+     * those from {@code portRange}. The ports used by each server are
+     * always published as the {@code diffusion.port} and
+     * {@code diffusion.sslPort} project properties, and as
+     * {@code diffusion.<serverId>.port} and
+     * {@code diffusion.<serverId>.sslPort}.
+     */
+    @Parameter(property = "diffusion.ephemeralPorts", defaultValue = "false")
+    protected boolean ephemeralPorts;
+
+    /**
+     * Range of ports, such as {@code 20000-20999}, to run the server on
+     * instead of {@code port} and {@code sslPort}. Ports are reserved with
+     * lock files in {@code portLockDirectory} until the server has started,
+     * so concurrent builds on the host that use the same directory never
+     * choose the same ports. Ports that are already bound are skipped.
+     */
+    @Parameter(property = "diffusion.portRange")
+    protected String portRange;
+
+    /**
+     * Directory shared by the builds on a host, holding the lock files for
+     * {@code portRange} and {@code ephemeralPorts}.
+     */
+    @Parameter(property = "diffusion.portLockDirectory",
+        defaultValue = "${java.io.tmpdir}/diffusion-port-locks")
+    protected File portLockDirectory;
+
+    /**
+     * Whether to run each server in a private overlay of diffusion.home,
+     * created under {@code target/diffusion/home/<serverId>}, so that
+     * servers running at the same time do not share logs, persistence files
+     * or other runtime state. The overlay is left in place after the server
+     * stops, and replaced on the next run.
+     */
+    @Parameter(property = "diffusion.isolateHome", defaultValue = "false")
+    protected boolean isolateDiffusionHome;
+
+    /**
+     * Comma-separated list of the top level directories of diffusion.home
+     * that the server writes to. With {@code isolateDiffusionHome}, these are
+     * copied for each server. Other files are hard links to the
+     * installation, so the server must not modify them.
+     */
+    @Parameter(defaultValue = "logs,data,persistence")
+    protected String diffusionHomeWritableDirectories = "logs,data,persistence";
+
+    /**
+     * Whether to record the classes the server loads during a successful
+     * start, and define them ahead of the server on background threads in
+     * later runs. The class list is recorded again whenever the plugin
+     * artifacts change.
+     */
+    @Parameter(property = "diffusion.preloadClasses", defaultValue = "false")
+    protected boolean preloadClasses;
+
+    /**
+     * Number of background threads used to preload classes.
+     */
+    @Parameter(defaultValue = "4")
+    protected int preloadThreads = 4;
+
+    /**
+     * Whether to keep the server's class loader when the server stops, and
+     * reuse it for later starts in the same Maven session that use the same
+     * plugin artifacts. The Diffusion classes are then only loaded once for
+     * a multi-module build. Requires a Diffusion version that can be started
+     * again in the same class loader once stopped.
+     */
+    @Parameter(property = "diffusion.reuseServerClassLoader", defaultValue = "false")
+    protected boolean reuseServerClassLoader;
+
+    /**
+     * Whether to share the server with the other modules of a multi-module
+     * build. The first module to start a server with a given configuration
+     * starts it, later modules with the same configuration use it, and it is
+     * stopped at the end of the build.
+     */
+    @Parameter(property = "diffusion.shareServer", defaultValue = "false")
+    protected boolean shareServer;
+
+    /**
+     * Number of servers to keep started in the background, ready for start
+     * executions in the same Maven session, such as those of the modules of
+     * a parallel build. Standby servers listen on free ports rather than
+     * {@code port} and {@code sslPort}, from {@code portRange} if it is
+     * set, otherwise as if {@code ephemeralPorts} was set. Zero disables
+     * the pool.
+     *
+     * <p>
+     * The pool is started by the first start execution that needs a
+     * server, or earlier by the standby goal, which is bound to the
+     * initialize phase so the servers start while the modules build. Start
+     * executions with a different configuration to the pool's start their
+     * own servers.
+     * </p>
+     */
+    @Parameter(property = "diffusion.standbyServers", defaultValue = "0")
+    protected int standbyServers;
+
+    /**
+     * Identifies the server, so that several servers can be run for a module
+     * and a stop execution can choose which to stop. Defaults to the id of
+     * the execution.
+     */
+    @Parameter
+    protected String serverId;
+
+    /**
+     * Whether to return as soon as the server has begun to start, rather
+     * than waiting for it to start. The server then starts while the build
+     * carries on, for example if this goal is bound to
+     * {@code process-test-classes}. The await goal waits for it to finish
+     * starting, with the same serverStartTimeout, and publishes its ports.
+     * A server that is not waited for, because the module's build fails
+     * first, is stopped when the build ends.
+     */
+    @Parameter(property = "diffusion.background", defaultValue = "false")
+    protected boolean background;
+
+    /**
+     * Whether to run the server in a child JVM rather than in the Maven JVM,
+     * so that its heap, garbage collection and JIT compilation do not
+     * compete with the build's and can be tuned separately. The child uses
+     * the same class path as an embedded server. Its output is written to
+     * {@code target/diffusion/fork-<serverId>.log}. A forked server is not
+     * shared, taken from the standby pool, or given a reused class loader.
+     */
+    @Parameter(property = "diffusion.fork", defaultValue = "false")
+    protected boolean fork;
+
+    /**
+     * The java executable used to fork the server.
+     */
+    @Parameter(property = "diffusion.javaExecutable", defaultValue = "${java.home}/bin/java")
+    protected String javaExecutable;
+
+    /**
+     * Space-separated options for the forked JVM, for example JIT options
+     * such as {@code -XX:TieredStopAtLevel=1}. Optional.
+     */
+    @Parameter(property = "diffusion.jvmArgs")
+    protected String jvmArgs;
+
+    /**
+     * Initial and maximum heap size of the forked JVM, for example
+     * {@code 512m}. Optional.
+     */
+    @Parameter(property = "diffusion.heapSize")
+    protected String heapSize;
+
+    /**
+     * Garbage collector of the forked JVM, by the name used in
+     * {@code -XX:+Use<name>GC}, for example {@code G1}, {@code Parallel} or
+     * {@code Serial}. Optional.
+     */
+    @Parameter(property = "diffusion.garbageCollector")
+    protected String garbageCollector;
+
+    /**
+     * Whether to start a forked server with an Application Class-Data
+     * Sharing archive of the classes it loads, which saves loading and
+     * verifying them. The first server with a given JDK, JVM options and
+     * class path creates the archive when it stops, later ones use it.
+     * Needs JDK 13 or later; ignored unless {@code fork} is set.
+     */
+    @Parameter(property = "diffusion.classDataSharing", defaultValue = "false")
+    protected boolean classDataSharing;
+
+    /**
+     * Directory holding class data sharing archives, shared by all builds
+     * on the host. Each archive is named after a digest of the JDK, the JVM
+     * options and the contents of the class path, so it is replaced when any
+     * of them changes.
+     */
+    @Parameter(property = "diffusion.classDataSharingDirectory",
+        defaultValue = "${user.home}/.m2/diffusion/cds")
+    protected File classDataSharingDirectory;
+
+    /**
+     * Percentage by which the time to start a server may exceed the time
+     * recorded in the previous startup report before a regression is
+     * reported. Startup reports are written to
+     * {@code target/diffusion/startup-<serverId>.json} whether or not this
+     * is set, so the previous report is only available if the build
+     * directory has not been cleaned.
+     */
+    @Parameter(property = "diffusion.startTimeRegressionThreshold")
+    protected Integer startTimeRegressionThreshold;
+
+    /**
+     * Whether a start time regression fails the build, rather than being
+     * logged as a warning.
+     */
+    @Parameter(property = "diffusion.failOnStartTimeRegression", defaultValue = "false")
+    protected boolean failOnStartTimeRegression;
+
+    /**
+     * The key of the server class loader in the session's
+     * {@link ServerClassLoaderCache}, or {@code null} if it is not cached.
+     */
+    private String serverClassLoaderKey;
+
+    private boolean serverClassLoaderReused;
+
+    private StartupTimings timings;
+
+    private ServerStarter starter;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (skip) {
@@ -108,7 +427,11 @@ public class DiffusionStartMojo extends AbstractDiffusionMojo {
         }
         getLog().info("Configuring Diffusion for project: " + this.project.getName());
 
+        timings = new StartupTimings();
+
+        final long start = System.nanoTime();
         configurePluginClasspath();
+        timings.record("configurePluginClasspath", start);
 
         PluginLog.setLog(getLog());
 
@@ -119,147 +442,594 @@ public class DiffusionStartMojo extends AbstractDiffusionMojo {
             }
         }
 
-        final EmbeddedDiffusion server = startDiffusion(configureServerClasspath());
+        final String id = serverId();
 
-        if (waitForDeployments) {
-            final CountDownLatch startLock = new CountDownLatch(1);
-            server.addLifecycleListener(new EmbeddedDiffusion.LifecycleListener() {
-                @Override
-                public void onStateChanged(EmbeddedDiffusion.State state) {
-                    if (state == EmbeddedDiffusion.State.STARTED) {
-                        startLock.countDown();
-                    }
-                }
-            });
+        if (getServerRegistry().contains(id)) {
+            throw new MojoExecutionException("Diffusion Server " + id + " is already running");
+        }
+
+        if (background) {
+            startInBackground(id);
+            return;
+        }
+
+        registerServer(id, startSelectedServer(id));
+    }
+
+    /**
+     * Start a server on a new thread and record the pending start for the
+     * await goal.
+     */
+    private void startInBackground(String id) throws MojoExecutionException {
+        final BackgroundStart start = new BackgroundStart(
+            id, () -> startSelectedServer(id), serverStartTimeout, server -> stopAbandoned(id, server));
+
+        if (!getServerRegistry().starting(id, start)) {
+            throw new MojoExecutionException("Diffusion Server " + id + " is already running");
+        }
+
+        start.begin(session, project.getId() + ":" + id);
+
+        getLog().info("Starting Diffusion Server " + id + " in the background");
+    }
+
+    /**
+     * Stop a server whose background start was abandoned, logging rather
+     * than propagating failure.
+     */
+    private void stopAbandoned(String id, RegisteredServer server) {
+        getLog().warn("Stopping Diffusion Server " + id +
+            ", which started in the background but was not waited for");
+
+        try {
+            stopDiffusion(id, server);
+        }
+        catch (MojoExecutionException e) {
+            getLog().warn(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Start a server, or take one from the shared servers or the standby
+     * pool, as configured.
+     */
+    private RegisteredServer startSelectedServer(String id) throws MojoExecutionException {
+        final long start = System.nanoTime();
+        starter = new ServerStarter(this, serverClassPath(), serverProperties(), diffusionDirectory());
+        timings.record("configureServerClasspath", start);
+
+        if (fork) {
+            return startForkedServer(id);
+        }
+
+        if (shareServer && session != null) {
+            final String key = starter.key(fixedPorts());
+            final SharedServers sharedServers = SharedServers.of(session);
+
+            synchronized (sharedServers.lock(key)) {
+                final RegisteredServer shared = attachSharedServer(sharedServers, key);
+                return shared != null ? shared : registerSharedServer(sharedServers, key, startServer(id));
+            }
+        }
+
+        if (standbyServers > 0 && session != null) {
+            final RegisteredServer standby = takeStandbyServer();
+            return standby != null ? standby : startServer(id);
+        }
+
+        return startServer(id);
+    }
+
+    private String serverId() {
+        if (serverId != null && !serverId.isEmpty()) {
+            return serverId;
+        }
+
+        return execution == null || execution.getExecutionId() == null ?
+            "default" : execution.getExecutionId();
+    }
 
+    /**
+     * Use a server from the session's standby pool.
+     *
+     * @return The server, or {@code null} if no standby server was available
+     */
+    private RegisteredServer takeStandbyServer() throws MojoExecutionException {
+        final ServerStarter standbyStarter = standbyStarter(starter.getClassPath());
+        final String key = standbyStarter.key(false);
+        final StandbyPool pool =
+            StandbyPool.start(session, key, standbyServers, standbyStarter::startStandby);
+
+        if (!pool.matches(key)) {
+            getLog().info("Standby Diffusion Servers have a different configuration, starting a new server");
+            return null;
+        }
+
+        final StandbyPool.Standby standby;
+
+        try {
+            standby = pool.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+
+        if (standby == null) {
+            return null;
+        }
+
+        getLog().info("Using standby Diffusion Server on port " + standby.getPort());
+        return new RegisteredServer(standby.getServer(), standby.getClassLoader(),
+            standby.getPort(), standby.getSslPort(), null, null);
+    }
+
+    /**
+     * Start the session's standby pool from this execution's configuration,
+     * unless the session already has one.
+     */
+    protected final void startStandbyPool() throws MojoExecutionException {
+        final ServerStarter standbyStarter = standbyStarter(serverClassPath());
+
+        StandbyPool.start(session, standbyStarter.key(false), standbyServers, standbyStarter::startStandby);
+    }
+
+    /**
+     * The pool outlives the execution that starts it, so its servers are
+     * started from a copy of the configuration, and write their files to a
+     * directory of the session rather than of a module.
+     */
+    private ServerStarter standbyStarter(List<URL> classPath) throws MojoExecutionException {
+        return new ServerStarter(this, classPath, serverProperties(), standbyDirectory());
+    }
+
+    /**
+     * Whether the server runs on the configured port and sslPort.
+     */
+    private boolean fixedPorts() {
+        return !ephemeralPorts && (portRange == null || portRange.isEmpty());
+    }
+
+    private RegisteredServer startServer(String id) throws MojoExecutionException {
+        final BlockingClassLoader serverClassLoader = configureServerClasspath();
+        // A reused class loader already has the classes.
+        final ClassPreloader preloader =
+            serverClassLoaderReused ? null : startPreloading(serverClassLoader);
+        final EmbeddedDiffusion server;
+        final PortReservation ports;
+
+        try {
             try {
-                if (!startLock.await(serverStartTimeout, TimeUnit.MILLISECONDS)) {
-                    throw new MojoExecutionException("Server failed to start after " + serverStartTimeout / 1000 + "s");
-                }
+                ports = starter.reservePorts(ephemeralPorts);
+            }
+            catch (MojoExecutionException | RuntimeException e) {
+                closeQuietly(serverClassLoader);
+                throw e;
+            }
+
+            try {
+                // Closes the class loader if the server fails to start.
+                server = starter.startAndWait(serverClassLoader, ports.getPort(0), ports.getPort(1), id, timings);
             }
-            catch (InterruptedException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
+            finally {
+                starter.release(ports);
             }
         }
+        finally {
+            if (preloader != null) {
+                preloader.stop();
+                getLog().info("Preloaded " + preloader.getLoadedCount() + " of " +
+                    preloader.getClassCount() + " server classes");
+            }
+        }
+
+        if (preloadClasses && preloader == null && !serverClassLoaderReused) {
+            recordPreloadClasses(serverClassLoader);
+        }
+
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("Server class loader grandparent lookups: " +
+                serverClassLoader.getGrandparentHitCount() + " hits, " +
+                serverClassLoader.getGrandparentMissCount() + " misses, " +
+                serverClassLoader.getGrandparentMissAvoidedCount() + " misses avoided");
+        }
 
-        getPluginContext().put("startedServerInstance", server);
+        return reportStartupTimings(id, new RegisteredServer(
+            server, serverClassLoader, ports.getPort(0), ports.getPort(1), serverClassLoaderKey, null));
     }
 
     /**
-     * Check if a port is available. From SO.
+     * Start a server in a child JVM.
      */
-    private static boolean portAvailable(int port) {
-        ServerSocket ss = null;
-        DatagramSocket ds = null;
+    private RegisteredServer startForkedServer(String id) throws MojoExecutionException {
+        if (shareServer || standbyServers > 0) {
+            getLog().warn("shareServer and standbyServers are ignored for a forked server");
+        }
+
+        final File directory = diffusionDirectory();
+        final File propertiesFile = new File(directory, "fork-" + toFileName(id) + ".properties");
+        final File log = new File(directory, "fork-" + toFileName(id) + ".log");
+        final PortReservation ports = starter.reservePorts(ephemeralPorts);
+
         try {
-            ss = new ServerSocket(port);
-            ss.setReuseAddress(true);
-            ds = new DatagramSocket(port);
-            ds.setReuseAddress(true);
-            return true;
-        } catch (IOException e) {
-        } finally {
-            if (ds != null) {
-                ds.close();
+            final int port = ports.getPort(0);
+            final int sslPort = ports.getPort(1);
+
+            for (int p : new int[] { port, sslPort }) {
+                if (!ServerStarter.portAvailable(p)) {
+                    throw new MojoExecutionException("Port " + p + " is not available and thus the server will not be able to start");
+                }
             }
 
-            if (ss != null) {
+            long start = System.nanoTime();
+            final Properties properties = starter.configureSystemProperties(id);
+            timings.record("configureSystemProperties", start);
+
+            Files.createDirectories(directory.toPath());
+
+            try (OutputStream out = Files.newOutputStream(propertiesFile.toPath())) {
+                properties.store(out, "Diffusion Server " + id);
+            }
+
+            start = System.nanoTime();
+            final List<String> options = forkedJvmOptions();
+            final List<File> classPath = forkedClassPath();
+            final ClassDataSharing sharing = classDataSharing(options, classPath);
+            timings.record("configureForkedJvm", start);
+            final List<String> jvm = new ArrayList<>();
+
+            jvm.add(javaExecutable);
+            jvm.addAll(options);
+
+            if (sharing != null) {
+                jvm.add(sharing.jvmOption());
+            }
+
+            jvm.add("-cp");
+            jvm.add(toClassPath(classPath));
+
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("Forking Diffusion Server: " + jvm);
+            }
+
+            final long begin = System.nanoTime();
+            final ForkedServer server;
+
+            try {
+                server = ForkedServer.start(
+                    jvm,
+                    asList(propertiesFile.getAbsolutePath(),
+                        Integer.toString(port),
+                        Integer.toString(sslPort),
+                        Integer.toString(maxMessageSize)),
+                    log,
+                    waitForDeployments,
+                    serverStartTimeout,
+                    sharing);
+            }
+            catch (IOException e) {
+                if (sharing != null) {
+                    // Discard a partly written archive.
+                    sharing.complete(false);
+                }
+
+                throw e;
+            }
+
+            timings.record("startForkedServer", begin);
+
+            try {
+                start = System.nanoTime();
+                starter.awaitReady(forkedConnectors(server), begin);
+                timings.record("awaitReady", start);
+            }
+            catch (MojoExecutionException e) {
                 try {
-                    ss.close();
-                } catch (IOException e) {
-                /* should not be thrown */
+                    BoundedStop.stop(server, "forked Diffusion Server " + id, drainTimeout, getLog());
+                }
+                catch (TimeoutException suppressed) {
+                    e.addSuppressed(suppressed);
                 }
+
+                throw e;
             }
+
+            getLog().info("Started forked Diffusion Server, output written to " + log);
+            return reportStartupTimings(id, new RegisteredServer(server, port, sslPort));
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Failed to start forked Diffusion Server", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        finally {
+            starter.release(ports);
+        }
+    }
+
+    /**
+     * @return The options of the forked JVM, other than its class path
+     */
+    private List<String> forkedJvmOptions() {
+        final List<String> options = new ArrayList<>();
+
+        if (heapSize != null && !heapSize.isEmpty()) {
+            options.add("-Xms" + heapSize);
+            options.add("-Xmx" + heapSize);
         }
 
-        return false;
+        if (garbageCollector != null && !garbageCollector.isEmpty()) {
+            options.add("-XX:+Use" + garbageCollector + "GC");
+        }
+
+        if (jvmArgs != null) {
+            for (String arg : jvmArgs.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    options.add(arg);
+                }
+            }
+        }
+
+        return options;
     }
 
-    private void finishConfigurationBeforeStart(ServerConfig config) throws Exception {
-        ConnectorConfig connector = config.getConnector("Client Connector");
-        config.getManagement().setEnabled(false);
-        if (connector != null) {
-            if (!portAvailable(port)) {
-                throw new MojoExecutionException("Port " + port + " is not available and thus the server will not be able to start");
+    /**
+     * @return The plugin's own jar, for ForkedServerMain, followed by the
+     *         class path an embedded server would have
+     */
+    private List<File> forkedClassPath() throws MojoExecutionException {
+        final List<File> classPath = new ArrayList<>();
+
+        try {
+            classPath.add(new File(
+                ForkedServerMain.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+
+            for (URL url : serverClassPath()) {
+                classPath.add(new File(url.toURI()));
             }
-            connector.setPort(port);
         }
-        connector = config.getConnector("HTTP Connector");
-        if (connector != null) {
-            if (!portAvailable(port)) {
-                throw new MojoExecutionException("Port " + port + " is not available and thus the server will not be able to start");
+        catch (URISyntaxException e) {
+            throw new MojoExecutionException("Invalid url", e);
+        }
+
+        return classPath;
+    }
+
+    private static String toClassPath(List<File> files) {
+        final StringBuilder result = new StringBuilder();
+
+        for (File file : files) {
+            if (result.length() > 0) {
+                result.append(File.pathSeparator);
             }
-            connector.setPort(port);
+
+            result.append(file.getPath());
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Choose the class data sharing archive for a forked server.
+     *
+     * @return The archive, or {@code null} if class data sharing is disabled
+     *         or not supported by the forked JVM
+     */
+    private ClassDataSharing classDataSharing(List<String> options, List<File> classPath) {
+        if (!classDataSharing) {
+            return null;
         }
-        connector = config.getConnector("SSL Connector");
-        if (connector != null) {
-            if (!portAvailable(sslPort)) {
-                throw new MojoExecutionException("Port " + sslPort + " is not available and thus the server will not be able to start");
+
+        final File javaHome = new File(javaExecutable).getAbsoluteFile().getParentFile().getParentFile();
+
+        try {
+            final ClassDataSharing sharing =
+                ClassDataSharing.of(classDataSharingDirectory, javaHome, options, classPath);
+
+            if (sharing == null) {
+                getLog().warn("Class data sharing needs JDK 13 or later, not using it for " + javaHome);
+            }
+            else if (sharing.exists()) {
+                getLog().info("Using class data sharing archive " + sharing.getArchive());
+            }
+            else {
+                getLog().info("Creating class data sharing archive " + sharing.getArchive() +
+                    " when the server stops");
             }
-            connector.setPort(sslPort);
+
+            return sharing;
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to prepare class data sharing archive", e);
+            return null;
         }
-        config.setMaximumMessageSize(maxMessageSize);
     }
 
-    private void printSystemProperties() {
-        // print out which system properties were set up
-        if (getLog().isDebugEnabled()) {
-            if (systemProperties != null) {
-                final Iterator<SystemProperty> itor = systemProperties.getSystemProperties().iterator();
-                while (itor.hasNext()) {
-                    SystemProperty prop = itor.next();
-                    getLog().debug("Property " + prop.getName() + "=" + prop.getValue() + " was " + (prop.isSet() ? "set" : "skipped"));
+    /**
+     * Use the shared server for this configuration, if there is one.
+     *
+     * @return The server, or {@code null} if there is no shared server
+     */
+    private RegisteredServer attachSharedServer(SharedServers sharedServers, String key) {
+        final SharedServers.SharedServer shared = sharedServers.attach(key);
+
+        if (shared == null) {
+            return null;
+        }
+
+        getLog().info("Using shared Diffusion Server");
+        return shared.getServer().shared(key);
+    }
+
+    private RegisteredServer registerSharedServer(SharedServers sharedServers,
+                                                  String key,
+                                                  RegisteredServer server) {
+        try {
+            sharedServers.register(key, new SharedServers.SharedServer(server));
+            return server.shared(key);
+        }
+        catch (IllegalStateException e) {
+            // The session has ended; the server is stopped as usual.
+            return server;
+        }
+    }
+
+    /**
+     * @return A probe for the connectors of a forked server
+     */
+    private ReadinessProbe forkedConnectors(ForkedServer server) {
+        final ReadinessProbe probe = starter.newReadinessProbe();
+
+        for (Map.Entry<String, Integer> connector : server.getConnectors().entrySet()) {
+            probe.addConnector(
+                connector.getKey(), connector.getValue(), connector.getKey().equals(SSL_CONNECTOR));
+        }
+
+        return probe;
+    }
+
+    /**
+     * Write the startup timings of a server started by this execution, and
+     * compare its start time with the previous report. The server is
+     * stopped if a regression fails the build.
+     *
+     * @return The server
+     */
+    private RegisteredServer reportStartupTimings(String id, RegisteredServer server)
+        throws MojoExecutionException {
+
+        final File report = new File(project.getBuild().getDirectory(),
+            "diffusion/startup-" + toFileName(id) + ".json");
+        final long total = timings.getTotalMillis();
+        long previous = -1;
+
+        try {
+            previous = StartupTimings.readTotalMillis(report);
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to read previous startup report " + report, e);
+        }
+
+        try {
+            timings.writeReport(report, id, total);
+            getLog().info("Diffusion Server " + id + " started in " + total + "ms, timings written to " + report);
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to write startup report " + report, e);
+        }
+
+        if (startTimeRegressionThreshold != null &&
+            StartupTimings.isRegression(previous, total, startTimeRegressionThreshold)) {
+
+            final String message = "Diffusion Server " + id + " took " + total +
+                "ms to start, more than " + startTimeRegressionThreshold + "% longer than the " +
+                previous + "ms of the previous start: " + timings.getPhases();
+
+            if (failOnStartTimeRegression) {
+                final MojoExecutionException e = new MojoExecutionException(message);
+
+                try {
+                    stopDiffusion(id, server);
+                }
+                catch (MojoExecutionException suppressed) {
+                    e.addSuppressed(suppressed);
                 }
+
+                throw e;
+            }
+
+            getLog().warn(message);
+        }
+
+        return server;
+    }
+
+    private File preloadClassList() {
+        return new File(project.getBuild().getDirectory(), "diffusion/preload-classes.txt");
+    }
+
+    /**
+     * Start defining the classes recorded by an earlier run.
+     *
+     * @return The preloader, or {@code null} if preloading is disabled or
+     *         there is no up to date class list, in which case the classes
+     *         the server loads are recorded.
+     */
+    private ClassPreloader startPreloading(BlockingClassLoader serverClassLoader) {
+        if (!preloadClasses) {
+            return null;
+        }
+
+        try {
+            final ClassPreloader preloader =
+                ClassPreloader.start(preloadClassList(), serverClassLoader, preloadThreads);
+
+            if (preloader != null) {
+                getLog().debug("Preloading " + preloader.getClassCount() +
+                    " server classes on " + preloadThreads + " threads");
+                return preloader;
             }
         }
+        catch (IOException e) {
+            getLog().warn("Failed to read preload class list " + preloadClassList(), e);
+        }
+
+        serverClassLoader.recordDefinedClasses();
+        return null;
+    }
+
+    private void recordPreloadClasses(BlockingClassLoader serverClassLoader) {
+        try {
+            ClassPreloader.record(preloadClassList(), serverClassLoader);
+            getLog().info("Recorded server classes to " + preloadClassList());
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to record preload class list " + preloadClassList(), e);
+        }
     }
 
-    private Properties configureSystemProperties() throws MojoExecutionException {
+    /**
+     * @return The properties to give the servers, with diffusion.home
+     *         resolved
+     */
+    private Properties serverProperties() throws MojoExecutionException {
         Properties props = new Properties();
         if (systemProperties != null) {
-            final Iterator<SystemProperty> itor = systemProperties.getSystemProperties().iterator();
-            while (itor.hasNext()) {
-                SystemProperty prop = itor.next();
-                props.put(prop.getName(), prop.getValue());
-            }
+            systemProperties.applyTo(props);
         }
 
         if (diffusionHome != null && diffusionHome.length() > 0) {
             props.setProperty("diffusion.home", diffusionHome);
         }
+        else if (props.getProperty("diffusion.home") == null && distribution != null) {
+            props.setProperty("diffusion.home", distributionHome().getAbsolutePath());
+        }
         // Fix up diffusion.home from environment if set.
         else if (props.getProperty("diffusion.home") == null && System.getenv("DIFFUSION_HOME") != null) {
-            diffusionHome = System.getenv("DIFFUSION_HOME");
-            props.setProperty("diffusion.home", diffusionHome);
-        }
-        else {
-            diffusionHome = props.getProperty("diffusion.home");
+            props.setProperty("diffusion.home", System.getenv("DIFFUSION_HOME"));
         }
 
         return props;
     }
 
-    private EmbeddedDiffusion startDiffusion(ClassLoader serverClassLoader) throws MojoExecutionException {
-        try {
-            getLog().debug("Starting Diffusion Server ...");
-
-            printSystemProperties();
-
-            final EmbeddedDiffusion
-                server = DiffusionServerWrapper.createServer(configureSystemProperties(), serverClassLoader);
+    /**
+     * @return The directory of the module for files written by the plugin
+     */
+    private File diffusionDirectory() {
+        return new File(project.getBuild().getDirectory(), "diffusion");
+    }
 
-            finishConfigurationBeforeStart(server.getConfig());
+    /**
+     * @return The directory for files written for standby servers, which is
+     *         the same for every module of the session
+     */
+    private File standbyDirectory() {
+        final MavenProject root = session.getTopLevelProject() != null ?
+            session.getTopLevelProject() : project;
 
-            server.start();
-            getLog().info("Started Diffusion Server");
-            return server;
-        }
-        catch (MojoExecutionException e) {
-            throw e;
-        }
-        catch (Exception e) {
-            throw new MojoExecutionException("Failed to start Diffusion", e);
-        }
+        return new File(root.getBuild().getDirectory(), "diffusion/standby");
     }
 
     private void configurePluginClasspath() throws MojoExecutionException {
@@ -295,52 +1065,121 @@ public class DiffusionStartMojo extends AbstractDiffusionMojo {
         }
     }
 
-    private ClassLoader configureServerClasspath() throws MojoExecutionException {
+    private BlockingClassLoader configureServerClasspath() throws MojoExecutionException {
+        final List<URL> provided = starter.getClassPath();
+        final URL[] urls = provided.toArray(new URL[provided.size()]);
+
+        getLog().info("Plugin classpath set to : " + Arrays.toString(urls));
+
+        final long start = System.nanoTime();
 
+        if (reuseServerClassLoader && session != null) {
+            serverClassLoaderKey = ServerClassLoaderCache.key(urls, SHARED_CLASSES);
+
+            final BlockingClassLoader cached =
+                ServerClassLoaderCache.of(session).acquire(serverClassLoaderKey);
+
+            if (cached != null) {
+                getLog().info("Reusing Diffusion server class loader");
+                serverClassLoaderReused = true;
+                timings.record("createClassLoader", start);
+                return cached;
+            }
+        }
+
+        final BlockingClassLoader serverClassLoader = starter.newClassLoader();
+        timings.record("createClassLoader", start);
+        return serverClassLoader;
+    }
+
+    private List<URL> serverClassPath() throws MojoExecutionException {
         try {
             List<URL> provided = new ArrayList<>();
-            URL[] urls = null;
+
+            // The distribution's server comes first, and replaces the one
+            // the plugin was built with, so it is the one that runs.
+            if (distribution != null) {
+                final File jar = new File(distributionHome(), "lib/diffusion.jar");
+
+                if (!jar.isFile()) {
+                    throw new MojoExecutionException("Distribution " + distribution + " has no " + jar);
+                }
+
+                provided.add(jar.toURI().toURL());
+            }
 
             for (Iterator<Artifact> iter = pluginArtifacts.iterator(); iter.hasNext(); ) {
                 Artifact artifact = iter.next();
+                if (distribution != null && isDiffusionServer(artifact)) {
+                    getLog().debug("Replacing " + artifact + " with distribution " + distribution);
+                    continue;
+                }
                 provided.add(artifact.getFile().toURI().toURL());
                 if (getLog().isDebugEnabled()) {
                     getLog().debug("Adding provided artifact: " + artifact);
                 }
             }
 
-            urls = new URL[provided.size()];
-            provided.toArray(urls);
-
-            // A small subset of classes necessary for communicating with
-            // the Diffusion interface.
-            final Set<String> sharedClasses = new HashSet<>(asList(
-                    EmbeddedDiffusion.class.getName(),
-                    EmbeddedDiffusion.LifecycleListener.class.getName(),
-                    EmbeddedDiffusion.State.class.getName(),
-                    "com.pushtechnology.diffusion.api.conflation.*",
-                    // Needed by Diffusion 6.7 and earlier:
-                    "com.pushtechnology.diffusion.api.LogDescription",
-                    "com.pushtechnology.diffusion.api.LogDescription$LogLevel",
-                    "com.pushtechnology.diffusion.api.config.*",
-                    // Allow JAXB to be packaged as a library.
-                    "javax.xml.*",
-                    "com.sun,*"
-            ));
-
-            getLog().info("Plugin classpath set to : " + Arrays.toString(urls));
-
-            return new BlockingClassLoader(provided,
-                    Collections.<String>emptySet(),
-                    singleton("*"),
-                    sharedClasses,
-                    true);
+            return provided;
         }
         catch (MalformedURLException e) {
             throw new MojoExecutionException("Invalid url", e);
         }
     }
 
+    /**
+     * Resolve and unpack the distribution, if it has not been already.
+     * Called by the threads that start standby servers, as well as by the
+     * execution.
+     */
+    private synchronized File distributionHome() throws MojoExecutionException {
+        if (distributionHome != null) {
+            return distributionHome;
+        }
+
+        final String[] parts = distribution.split(":");
+        final DefaultArtifact archive;
+
+        try {
+            archive = new DefaultArtifact(parts.length == 3 ?
+                parts[0] + ":" + parts[1] + ":zip:" + parts[2] :
+                distribution);
+        }
+        catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Invalid distribution " + distribution, e);
+        }
+
+        final File file;
+
+        try {
+            file = repositorySystem.resolveArtifact(
+                repositorySystemSession,
+                new ArtifactRequest(archive, remoteRepositories, null)).getArtifact().getFile();
+        }
+        catch (ArtifactResolutionException e) {
+            throw new MojoExecutionException("Failed to resolve distribution " + distribution, e);
+        }
+
+        final long start = System.nanoTime();
+
+        try {
+            distributionHome = DistributionCache.unpack(file, distributionCacheDirectory);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Failed to unpack distribution " + file, e);
+        }
+
+        getLog().info("Using distribution " + distribution + " from " + distributionHome + " (" +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms)");
+
+        return distributionHome;
+    }
+
+    private static boolean isDiffusionServer(Artifact artifact) {
+        return "com.pushtechnology.diffusion".equals(artifact.getGroupId()) &&
+            "diffusion".equals(artifact.getArtifactId());
+    }
+
     private boolean isPluginArtifact(Artifact artifact) {
         if (pluginArtifacts == null || pluginArtifacts.isEmpty()) {
             return false;
@@ -17,10 +17,21 @@
  */
 package com.pushtechnology.diffusion.maven.plugin;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
 
 /**
  * Stops a running instance of Diffusion.
@@ -30,6 +41,48 @@ import org.apache.maven.plugins.annotations.Mojo;
     defaultPhase = LifecyclePhase.POST_INTEGRATION_TEST)
 public class DiffusionStopMojo extends AbstractDiffusionMojo {
 
+    /**
+     * Ids of the servers to stop, as given by the start goal's
+     * {@code serverId}. All the module's servers are stopped if none are
+     * given.
+     */
+    @Parameter(property = "diffusion.serverIds")
+    protected String[] serverIds;
+
+    /**
+     * Whether to check that the server's class loader is garbage collected
+     * once the server has stopped. A class loader that is not collected
+     * keeps a copy of the Diffusion classes in memory, which matters in
+     * long-lived Maven processes.
+     */
+    @Parameter(property = "diffusion.checkClassLoaderUnloaded", defaultValue = "false")
+    protected boolean checkClassLoaderUnloaded;
+
+    /**
+     * Whether to fail the build, rather than warn, if the class loader check
+     * finds a leak.
+     */
+    @Parameter(property = "diffusion.failOnClassLoaderLeak", defaultValue = "false")
+    protected boolean failOnClassLoaderLeak;
+
+    /**
+     * Number of milliseconds to wait for the server's class loader to be
+     * garbage collected.
+     */
+    @Parameter(defaultValue = "5000")
+    protected long classLoaderUnloadTimeout = 5000;
+
+    /**
+     * Whether to stop the servers in the background, so that the build
+     * carries on, for example to report on the integration tests, while they
+     * drain. The build waits for them to stop before it exits. The class
+     * loader check is not made for servers stopped in the background, and a
+     * server that fails to stop is only logged as a warning; it does not
+     * fail the build.
+     */
+    @Parameter(property = "diffusion.stopInBackground", defaultValue = "false")
+    protected boolean stopInBackground;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (skip) {
@@ -37,6 +90,179 @@ public class DiffusionStopMojo extends AbstractDiffusionMojo {
             return;
         }
 
-        stopDiffusion();
+        // Servers still starting in the background must finish starting
+        // before they can be stopped.
+        awaitStartingQuietly(serverIds == null || serverIds.length == 0 ?
+            getServerRegistry().startingIds() : Arrays.asList(serverIds));
+
+        final List<String> ids = serverIds == null || serverIds.length == 0 ?
+            getServerRegistry().ids() : Arrays.asList(serverIds);
+
+        if (ids.isEmpty()) {
+            getLog().warn("Diffusion Server never started");
+            return;
+        }
+
+        if (stopInBackground && session != null) {
+            stopInBackground(ids);
+            return;
+        }
+
+        final List<Reference<ClassLoader>> stoppedClassLoaders = new ArrayList<>();
+        MojoExecutionException failure = null;
+
+        for (String id : ids) {
+            try {
+                final Reference<ClassLoader> classLoader = stopServer(id);
+
+                if (classLoader != null) {
+                    stoppedClassLoaders.add(classLoader);
+                }
+            }
+            catch (MojoExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (checkClassLoaderUnloaded) {
+            for (Reference<ClassLoader> classLoader : stoppedClassLoaders) {
+                checkUnloaded(classLoader);
+            }
+        }
+    }
+
+    private void stopInBackground(List<String> ids) {
+        final BackgroundStops stops = BackgroundStops.of(session);
+
+        for (String id : ids) {
+            stops.start(id, () -> {
+                try {
+                    stopServer(id);
+                }
+                catch (MojoExecutionException | RuntimeException e) {
+                    getLog().warn("Failed to stop Diffusion Server " + id + " in the background", e);
+                }
+            });
+
+            getLog().info("Stopping Diffusion Server " + id + " in the background");
+        }
+    }
+
+    /**
+     * Stop a server and report its class loading. Holds nothing that keeps
+     * the class loader reachable once it returns.
+     *
+     * @return A reference to the server's class loader if it should now be
+     *         unloaded, otherwise {@code null}, which includes after a
+     *         forced stop
+     */
+    private Reference<ClassLoader> stopServer(String id) throws MojoExecutionException {
+        final RegisteredServer server = getServerRegistry().remove(id);
+
+        if (server == null) {
+            getLog().warn("No Diffusion Server with id " + id);
+            return null;
+        }
+
+        if (server.getForkedServer() != null) {
+            stopDiffusion(id, server);
+            return null;
+        }
+
+        final ClassLoadingStatistics statistics = server.getClassLoader().getStatistics();
+        final boolean cached = server.getClassLoaderKey() != null;
+        final Reference<ClassLoader> classLoader =
+            new WeakReference<ClassLoader>(server.getClassLoader());
+
+        final StopOutcome outcome = stopDiffusion(id, server);
+
+        writeClassLoadingReport(id, statistics);
+
+        if (outcome == StopOutcome.LEFT_RUNNING) {
+            return null;
+        }
+
+        if (outcome == StopOutcome.FORCED) {
+            // Threads left behind by a forced stop may keep the class loader
+            // reachable.
+            if (checkClassLoaderUnloaded) {
+                getLog().info("Diffusion Server " + id + " was forced to stop, not checking its class loader is unloaded");
+            }
+
+            return null;
+        }
+
+        if (cached) {
+            if (checkClassLoaderUnloaded) {
+                getLog().info("Diffusion server class loader kept for reuse, not checking it is unloaded");
+            }
+
+            return null;
+        }
+
+        return classLoader;
+    }
+
+    /**
+     * Record the cost of class loading in a server, so it can be tracked
+     * across builds.
+     */
+    private void writeClassLoadingReport(String id, ClassLoadingStatistics statistics) {
+        final File report = new File(project.getBuild().getDirectory(),
+            "diffusion/classloading-" + toFileName(id) + ".json");
+
+        try {
+            statistics.writeReport(report);
+            getLog().info("Class loading report written to " + report);
+        }
+        catch (IOException e) {
+            getLog().warn("Failed to write class loading report " + report, e);
+        }
+    }
+
+    /**
+     * Wait for a stopped server's class loader to be garbage collected.
+     */
+    private void checkUnloaded(Reference<ClassLoader> serverClassLoader)
+        throws MojoFailureException {
+
+        final long deadline = System.currentTimeMillis() + classLoaderUnloadTimeout;
+
+        while (serverClassLoader.get() != null &&
+               System.currentTimeMillis() < deadline) {
+            System.gc();
+
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (serverClassLoader.get() == null) {
+            getLog().info("Diffusion server class loader unloaded");
+            return;
+        }
+
+        final String message =
+            "Diffusion server class loader was not unloaded after " +
+            classLoaderUnloadTimeout + "ms; the server classes are leaking";
+
+        if (failOnClassLoaderLeak) {
+            throw new MojoFailureException(message);
+        }
+
+        getLog().warn(message);
     }
 }
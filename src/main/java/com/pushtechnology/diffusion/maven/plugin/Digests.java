@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Message digests of files and other values, formatted as hexadecimal.
+ */
+final class Digests {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Digests() {
+    }
+
+    /**
+     * Create a digest. Every Java platform supports SHA-1 and SHA-256.
+     *
+     * @throws IllegalStateException If the algorithm is not supported
+     */
+    static MessageDigest create(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Digest the contents of a file.
+     *
+     * @return The digest in hexadecimal
+     */
+    static String digest(Path file, String algorithm) throws IOException {
+        final MessageDigest digest = create(algorithm);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+
+        return hex(digest.digest());
+    }
+
+    static String hex(byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+
+        return result.toString();
+    }
+}
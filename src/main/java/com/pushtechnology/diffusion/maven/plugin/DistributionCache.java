@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Diffusion distributions unpacked once and shared by all builds on the
+ * host.
+ *
+ * <p>
+ * Each archive is unpacked into a directory named after the SHA-256 digest
+ * of its contents, so a directory is never reused for a different archive.
+ * An archive is unpacked into a temporary directory that is renamed into
+ * place when it is complete, so concurrent builds never see a partial
+ * distribution: the first rename wins and the others discard their copies.
+ * </p>
+ */
+final class DistributionCache {
+
+    private DistributionCache() {
+    }
+
+    /**
+     * Find the unpacked copy of a distribution archive, unpacking it if
+     * necessary.
+     *
+     * @param archive The zip archive
+     * @param cacheDirectory The directory that holds the unpacked copies
+     * @return The Diffusion installation: the single top level directory of
+     *         the archive if it has one, otherwise the unpacked copy itself
+     * @throws IOException If the archive does not match its checksum file,
+     *         or cannot be unpacked
+     */
+    static File unpack(File archive, File cacheDirectory) throws IOException {
+        final String digest = Digests.digest(archive.toPath(), "SHA-256");
+
+        verifyChecksum(archive);
+
+        final Path target = cacheDirectory.toPath().resolve(digest);
+
+        if (!Files.isDirectory(target)) {
+            Files.createDirectories(cacheDirectory.toPath());
+
+            final Path temporary = cacheDirectory.toPath().resolve(digest + ".tmp-" + UUID.randomUUID());
+
+            try {
+                extract(archive.toPath(), temporary);
+
+                try {
+                    Files.move(temporary, target, ATOMIC_MOVE);
+                }
+                catch (FileAlreadyExistsException e) {
+                    // Another build unpacked the same archive first.
+                }
+                catch (IOException e) {
+                    // Some platforms report a clash as a generic failure.
+                    if (!Files.isDirectory(target)) {
+                        throw e;
+                    }
+                }
+            }
+            finally {
+                if (Files.exists(temporary)) {
+                    DiffusionHomeOverlay.delete(temporary);
+                }
+            }
+        }
+
+        return home(target).toFile();
+    }
+
+    /**
+     * Check an archive against the SHA-1 checksum file that the repository
+     * keeps beside it, if there is one.
+     */
+    private static void verifyChecksum(File archive) throws IOException {
+        final Path checksumFile = new File(archive.getPath() + ".sha1").toPath();
+
+        if (!Files.isRegularFile(checksumFile)) {
+            return;
+        }
+
+        final String content = new String(Files.readAllBytes(checksumFile), US_ASCII).trim();
+        final String expected = content.split("\\s+")[0];
+        final String actual = Digests.digest(archive.toPath(), "SHA-1");
+
+        if (!actual.equalsIgnoreCase(expected)) {
+            throw new IOException(
+                "Checksum mismatch for " + archive + ": expected " + expected + ", was " + actual);
+        }
+    }
+
+    private static void extract(Path archive, Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        // ZipInputStream checks the CRC of each entry as it is read.
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                final Path path = directory.resolve(entry.getName()).normalize();
+
+                if (!path.startsWith(directory)) {
+                    throw new IOException("Entry " + entry.getName() + " is outside the archive");
+                }
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    continue;
+                }
+
+                Files.createDirectories(path.getParent());
+                // Copies the current entry, leaving the stream open.
+                Files.copy(in, path);
+            }
+        }
+    }
+
+    /**
+     * @return The single top level directory of an unpacked archive, or the
+     *         unpacked archive itself
+     */
+    private static Path home(Path unpacked) throws IOException {
+        final List<Path> children = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(unpacked)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+
+        if (children.size() == 1 && Files.isDirectory(children.get(0))) {
+            return children.get(0);
+        }
+
+        return unpacked;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Diffusion server running in a child JVM.
+ *
+ * <p>
+ * The child runs {@link ForkedServerMain}, which connects back to a loopback
+ * socket opened by this class and reports the server's lifecycle over it.
+ * The child's output is written to a log file.
+ * </p>
+ */
+final class ForkedServer {
+
+    /**
+     * Number of milliseconds between checks that the child is still running
+     * while waiting for it to connect.
+     */
+    private static final int ACCEPT_POLL_INTERVAL = 200;
+
+    private final Process process;
+    private final Socket control;
+    private final PrintWriter out;
+    private final File log;
+    private final ClassDataSharing classDataSharing;
+    private final Map<String, Integer> connectors = new LinkedHashMap<>();
+    private volatile String state = "STARTING";
+
+    private ForkedServer(Process process,
+                         Socket control,
+                         File log,
+                         ClassDataSharing classDataSharing) throws IOException {
+        this.process = process;
+        this.control = control;
+        this.out = new PrintWriter(new OutputStreamWriter(control.getOutputStream(), UTF_8), true);
+        this.log = log;
+        this.classDataSharing = classDataSharing;
+    }
+
+    /**
+     * Fork a JVM that runs a server and wait for the server to start.
+     *
+     * @param jvm The java executable and its options, including the class
+     *        path
+     * @param arguments The arguments of {@link ForkedServerMain}, after the
+     *        control port
+     * @param log The file to write the child's output to
+     * @param awaitStarted Whether to wait for the server to report that it
+     *        has started, rather than for {@code start()} to return
+     * @param timeout Number of milliseconds to wait
+     * @param classDataSharing The class data sharing archive named in the
+     *        JVM options, or {@code null}
+     * @throws IOException If the server fails to start in time. The child is
+     *         killed.
+     */
+    static ForkedServer start(List<String> jvm,
+                              List<String> arguments,
+                              File log,
+                              boolean awaitStarted,
+                              long timeout,
+                              ClassDataSharing classDataSharing) throws IOException {
+
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final List<String> command = new ArrayList<>(jvm);
+            command.add(ForkedServerMain.class.getName());
+            command.add(Integer.toString(listener.getLocalPort()));
+            command.addAll(arguments);
+
+            log.getParentFile().mkdirs();
+
+            final Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+
+            try {
+                final Socket control = accept(listener, process, deadline, log);
+
+                try {
+                    final ForkedServer server = new ForkedServer(process, control, log, classDataSharing);
+                    server.awaitStarted(awaitStarted ? "STATE STARTED" : "RUNNING", deadline);
+                    return server;
+                }
+                catch (IOException | RuntimeException e) {
+                    control.close();
+                    throw e;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                process.destroyForcibly();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Wait for the child to connect, failing as soon as it exits.
+     */
+    private static Socket accept(ServerSocket listener, Process process, long deadline, File log)
+        throws IOException {
+
+        for (;;) {
+            listener.setSoTimeout(Math.min(remaining(deadline, log), ACCEPT_POLL_INTERVAL));
+
+            try {
+                return listener.accept();
+            }
+            catch (SocketTimeoutException e) {
+                if (!process.isAlive()) {
+                    throw new IOException(
+                        "Forked server exited with status " + process.exitValue() + ", see " + log, e);
+                }
+            }
+        }
+    }
+
+    private void awaitStarted(String message, long deadline) throws IOException {
+        final BufferedReader in =
+            new BufferedReader(new InputStreamReader(control.getInputStream(), UTF_8));
+
+        for (;;) {
+            control.setSoTimeout(remaining(deadline, log));
+
+            final String line;
+
+            try {
+                line = in.readLine();
+            }
+            catch (SocketTimeoutException e) {
+                throw new IOException("Forked server failed to start in time, see " + log, e);
+            }
+
+            if (line == null) {
+                throw new IOException("Forked server exited during start, see " + log);
+            }
+
+            received(line);
+
+            if (line.startsWith("FAILED")) {
+                throw new IOException("Forked server failed to start: " +
+                    line.substring("FAILED".length()).trim() + ", see " + log);
+            }
+
+            if (line.equals(message)) {
+                break;
+            }
+        }
+
+        control.setSoTimeout(0);
+
+        final Thread monitor = new Thread(() -> monitor(in), "diffusion-fork-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    private static int remaining(long deadline, File log) throws IOException {
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+            throw new IOException("Forked server failed to start in time, see " + log);
+        }
+
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Track the server's state until the child exits.
+     */
+    private void monitor(BufferedReader in) {
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                received(line);
+            }
+        }
+        catch (IOException e) {
+            // The child has gone.
+        }
+
+        state = "EXITED";
+    }
+
+    private void received(String line) {
+        if (line.startsWith("CONNECTOR ")) {
+            final String[] parts = line.split(" ", 3);
+
+            synchronized (connectors) {
+                connectors.put(parts[2], Integer.valueOf(parts[1]));
+            }
+        }
+        else if (line.startsWith("STATE ")) {
+            state = line.substring("STATE ".length());
+        }
+        else if (line.equals("STOPPED")) {
+            state = line;
+        }
+    }
+
+    /**
+     * @return The last state the server reported, or {@code EXITED} if the
+     *         connection to the child has closed
+     */
+    String getState() {
+        return state;
+    }
+
+    File getLog() {
+        return log;
+    }
+
+    /**
+     * @return The ports of the connectors the server is configured with, by
+     *         connector name
+     */
+    Map<String, Integer> getConnectors() {
+        synchronized (connectors) {
+            return new LinkedHashMap<>(connectors);
+        }
+    }
+
+    /**
+     * @return The class data sharing archive used or created by the server,
+     *         or {@code null}
+     */
+    ClassDataSharing getClassDataSharing() {
+        return classDataSharing;
+    }
+
+    /**
+     * Ask the server to stop and wait for the child to exit.
+     *
+     * @param timeout Number of milliseconds to wait
+     * @return {@code true} if the child exited in time
+     */
+    boolean stop(long timeout) throws InterruptedException {
+        out.println("STOP");
+
+        if (process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+            closeControl();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Kill the child and wait for it to exit.
+     *
+     * @param timeout Number of milliseconds to wait
+     * @return {@code true} if the child exited in time
+     */
+    boolean kill(long timeout) throws InterruptedException {
+        try {
+            return process.destroyForcibly().waitFor(timeout, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            closeControl();
+        }
+    }
+
+    private void closeControl() {
+        try {
+            control.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
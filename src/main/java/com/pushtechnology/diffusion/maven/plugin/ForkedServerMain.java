@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import com.pushtechnology.diffusion.api.config.ConnectorConfig;
+import com.pushtechnology.diffusion.api.config.ServerConfig;
+import com.pushtechnology.diffusion.api.server.DiffusionServer;
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * Runs a Diffusion server in a JVM forked by {@link ForkedServer}.
+ *
+ * <p>
+ * The server reports its lifecycle over a loopback connection to the
+ * plugin, one message per line:
+ * </p>
+ * <ul>
+ * <li>{@code CONNECTOR <port> <name>} for each connector the server is
+ * configured with,</li>
+ * <li>{@code STATE <state>} when the server changes state,</li>
+ * <li>{@code RUNNING} when {@code start()} has returned,</li>
+ * <li>{@code FAILED <reason>} if the server could not be started,</li>
+ * <li>{@code STOPPED} when the server has stopped.</li>
+ * </ul>
+ * <p>
+ * The plugin sends {@code STOP} to stop the server. The server is also
+ * stopped if the connection is lost, so it does not outlive the build.
+ * </p>
+ *
+ * <p>
+ * Only the JDK and the Diffusion API may be used here: the forked JVM does
+ * not have the Maven API on its class path.
+ * </p>
+ */
+public final class ForkedServerMain {
+
+    private ForkedServerMain() {
+    }
+
+    /**
+     * @param args The control port, the server properties file, the port,
+     *        the SSL port, the maximum message size and, optionally, a class
+     *        with a static {@code newServer(Properties)} method to create
+     *        the server instead of {@link DiffusionServer}, for tests
+     */
+    public static void main(String[] args) throws Exception {
+        final int controlPort = Integer.parseInt(args[0]);
+        final Properties properties = new Properties();
+
+        try (InputStream in = Files.newInputStream(Paths.get(args[1]))) {
+            properties.load(in);
+        }
+
+        final int port = Integer.parseInt(args[2]);
+        final int sslPort = Integer.parseInt(args[3]);
+        final int maxMessageSize = Integer.parseInt(args[4]);
+
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), controlPort)) {
+            final PrintWriter out =
+                new PrintWriter(new OutputStreamWriter(control.getOutputStream(), UTF_8), true);
+            final BufferedReader in =
+                new BufferedReader(new InputStreamReader(control.getInputStream(), UTF_8));
+            final EmbeddedDiffusion server;
+
+            try {
+                // The JVM runs only this server, so its properties can also
+                // be JVM system properties.
+                System.getProperties().putAll(properties);
+
+                server = newServer(args.length > 5 ? args[5] : null, properties);
+
+                server.addLifecycleListener(new EmbeddedDiffusion.LifecycleListener() {
+                    @Override
+                    public void onStateChanged(EmbeddedDiffusion.State state) {
+                        out.println("STATE " + state);
+                    }
+                });
+
+                configure(server.getConfig(), port, sslPort, maxMessageSize, out);
+                server.start();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                out.println("FAILED " + String.valueOf(e).replace('\n', ' '));
+                System.exit(1);
+                return;
+            }
+
+            out.println("RUNNING");
+
+            for (String line = in.readLine(); line != null && !"STOP".equals(line); line = in.readLine()) {
+                // Ignore anything else.
+            }
+
+            server.stop();
+            out.println("STOPPED");
+        }
+
+        System.exit(0);
+    }
+
+    private static EmbeddedDiffusion newServer(String factory, Properties properties)
+        throws Exception {
+
+        if (factory != null) {
+            return (EmbeddedDiffusion) Class.forName(factory)
+                .getMethod("newServer", Properties.class)
+                .invoke(null, properties);
+        }
+
+        return (EmbeddedDiffusion) Class.forName(DiffusionServer.class.getName())
+            .getConstructor(Properties.class, boolean.class)
+            .newInstance(properties, true);
+    }
+
+    /**
+     * Apply the plugin's configuration. The plugin has already checked the
+     * ports are free.
+     */
+    private static void configure(ServerConfig config,
+                                  int port,
+                                  int sslPort,
+                                  int maxMessageSize,
+                                  PrintWriter out) throws Exception {
+
+        config.getManagement().setEnabled(false);
+
+        setPort(config, "Client Connector", port, out);
+        setPort(config, "HTTP Connector", port, out);
+        setPort(config, "SSL Connector", sslPort, out);
+
+        config.setMaximumMessageSize(maxMessageSize);
+    }
+
+    private static void setPort(ServerConfig config, String name, int port, PrintWriter out)
+        throws Exception {
+
+        final ConnectorConfig connector = config.getConnector(name);
+
+        if (connector != null) {
+            connector.setPort(port);
+            out.println("CONNECTOR " + port + " " + name);
+        }
+    }
+}
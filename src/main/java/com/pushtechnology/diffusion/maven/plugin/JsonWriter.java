@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+
+/**
+ * Minimal streaming writer for the JSON reports the plugin produces.
+ *
+ * <p>
+ * The caller is responsible for producing a well formed document; this
+ * class only takes care of separators, indentation and string escaping.
+ * </p>
+ */
+final class JsonWriter implements Closeable {
+
+    private final Writer out;
+    private int depth;
+    private boolean first = true;
+    private boolean afterName;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Open a writer for a report file, creating its directory if necessary.
+     */
+    static JsonWriter create(File file) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        return new JsonWriter(Files.newBufferedWriter(file.toPath(), UTF_8));
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(": ");
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        separate();
+
+        if (value == null) {
+            out.write("null");
+        }
+        else {
+            string(value);
+        }
+
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(double value) throws IOException {
+        separate();
+        out.write(Double.isNaN(value) || Double.isInfinite(value) ?
+                  "null" : Double.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(Boolean.toString(value));
+        return this;
+    }
+
+    JsonWriter property(String name, String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    JsonWriter property(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    JsonWriter property(String name, double value) throws IOException {
+        return name(name).value(value);
+    }
+
+    JsonWriter property(String name, boolean value) throws IOException {
+        return name(name).value(value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.write('\n');
+        out.close();
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        out.write(c);
+        ++depth;
+        first = true;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        --depth;
+
+        if (!first) {
+            newLine();
+        }
+
+        out.write(c);
+        first = false;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+
+        if (depth > 0) {
+            if (!first) {
+                out.write(',');
+            }
+
+            newLine();
+        }
+
+        first = false;
+    }
+
+    private void newLine() throws IOException {
+        out.write('\n');
+
+        for (int i = 0; i < depth; ++i) {
+            out.write("  ");
+        }
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    out.write(c);
+                }
+            }
+        }
+
+        out.write('"');
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ports chosen for a server, held until the server has bound them.
+ *
+ * <p>
+ * Ports taken from a range, or chosen by the operating system, are reserved
+ * with a lock on a file per port in a directory shared by the processes on
+ * the host, so that concurrent builds never choose the same port. A port
+ * that is locked by another process, or that is already bound, is skipped.
+ * </p>
+ */
+final class PortReservation implements Closeable {
+
+    /**
+     * Number of ports to ask the operating system for before giving up on
+     * finding ports that are not reserved.
+     */
+    private static final int MAXIMUM_EPHEMERAL_ATTEMPTS = 100;
+
+    private final int[] ports;
+    private final List<FileChannel> locks;
+
+    private PortReservation(int[] ports, List<FileChannel> locks) {
+        this.ports = ports;
+        this.locks = locks;
+    }
+
+    /**
+     * Use fixed ports, without reserving them.
+     */
+    static PortReservation fixed(int... ports) {
+        return new PortReservation(ports.clone(), new ArrayList<FileChannel>());
+    }
+
+    /**
+     * Reserve free ports chosen by the operating system.
+     *
+     * <p>
+     * The sockets that choose the ports must be closed before the server can
+     * bind them, so the ports are also reserved with lock files, like ports
+     * from a range. A build that is given a port that another build has
+     * reserved but not yet bound skips it. The sockets are held open until
+     * every port has been chosen, so the ports are distinct.
+     * </p>
+     *
+     * @param lockDirectory The directory that holds the lock files
+     * @param count The number of ports to reserve
+     * @throws IOException If the operating system keeps choosing reserved
+     *         ports
+     */
+    static PortReservation ephemeral(File lockDirectory, int count) throws IOException {
+        Files.createDirectories(lockDirectory.toPath());
+
+        final int[] result = new int[count];
+        final List<FileChannel> locks = new ArrayList<>(count);
+        final PortReservation reservation = new PortReservation(result, locks);
+        final List<ServerSocket> sockets = new ArrayList<>();
+        int reserved = 0;
+
+        try {
+            for (int i = 0; i < MAXIMUM_EPHEMERAL_ATTEMPTS && reserved < count; ++i) {
+                final ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+
+                final int port = socket.getLocalPort();
+                final FileChannel lock = lock(new File(lockDirectory, "port-" + port + ".lock"));
+
+                if (lock != null) {
+                    locks.add(lock);
+                    result[reserved++] = port;
+                }
+            }
+
+            if (reserved < count) {
+                throw new IOException(
+                    "Only " + reserved + " of " + count + " free ports could be reserved");
+            }
+
+            return reservation;
+        }
+        catch (IOException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+        finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Reserve free ports from a range.
+     *
+     * @param lockDirectory The directory that holds the lock files
+     * @param low The lowest port in the range
+     * @param high The highest port in the range
+     * @param count The number of ports to reserve
+     * @throws IOException If there are not enough free ports in the range
+     */
+    static PortReservation fromRange(File lockDirectory, int low, int high, int count)
+        throws IOException {
+
+        Files.createDirectories(lockDirectory.toPath());
+
+        final int size = high - low + 1;
+        final int[] result = new int[count];
+        final List<FileChannel> locks = new ArrayList<>(count);
+        final PortReservation reservation = new PortReservation(result, locks);
+
+        // Start at a random port, so concurrent builds rarely contend for
+        // the same lock files.
+        final int start = ThreadLocalRandom.current().nextInt(size);
+        int reserved = 0;
+
+        try {
+            for (int i = 0; i < size && reserved < count; ++i) {
+                final int port = low + (start + i) % size;
+                final FileChannel lock = lock(new File(lockDirectory, "port-" + port + ".lock"));
+
+                if (lock == null) {
+                    continue;
+                }
+
+                if (!bindable(port)) {
+                    lock.close();
+                    continue;
+                }
+
+                locks.add(lock);
+                result[reserved++] = port;
+            }
+
+            if (reserved < count) {
+                throw new IOException(
+                    "Only " + reserved + " of " + count + " ports free in range " + low + "-" + high);
+            }
+
+            return reservation;
+        }
+        catch (IOException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The channel holding the lock, or {@code null} if the file is
+     *         locked by another process or thread
+     */
+    private static FileChannel lock(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), CREATE, WRITE);
+
+        try {
+            final FileLock lock = channel.tryLock();
+
+            if (lock != null) {
+                return channel;
+            }
+        }
+        catch (OverlappingFileLockException e) {
+            // Locked by another thread of this process.
+        }
+
+        channel.close();
+        return null;
+    }
+
+    private static boolean bindable(int port) {
+        try {
+            new ServerSocket(port).close();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    int getPort(int i) {
+        return ports[i];
+    }
+
+    /**
+     * Release the ports, once the server has bound them.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+
+        for (FileChannel lock : locks) {
+            try {
+                // Closing the channel releases the lock. The file is kept,
+                // because deleting it could race with another process
+                // locking it.
+                lock.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        locks.clear();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a server's connectors to accept connections.
+ *
+ * <p>
+ * Each connector is polled on the loopback address until it answers, with a
+ * backoff that starts short, so a server is reported ready soon after it
+ * is. With {@link Mode#TCP}, a connector answers when it accepts a TCP
+ * connection. With {@link Mode#WEBSOCKET}, a connector that is not secure
+ * must also give an HTTP response to a WebSocket upgrade request; secure
+ * connectors are only checked at the TCP level.
+ * </p>
+ */
+final class ReadinessProbe {
+
+    /**
+     * How connectors are checked.
+     */
+    enum Mode {
+        /** Connectors are not checked. */
+        NONE,
+        /** A connector must accept a TCP connection. */
+        TCP,
+        /** A connector must answer a WebSocket upgrade request. */
+        WEBSOCKET
+    }
+
+    /**
+     * Number of milliseconds to wait for a connection or a response.
+     */
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private static final long INITIAL_BACKOFF = 10;
+
+    private static final long MAXIMUM_BACKOFF = 200;
+
+    private final Mode mode;
+    private final Map<String, Connector> connectors = new LinkedHashMap<>();
+
+    ReadinessProbe(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Add a connector to check.
+     *
+     * @param secure Whether the connector uses TLS
+     */
+    void addConnector(String name, int port, boolean secure) {
+        connectors.put(name, new Connector(port, secure));
+    }
+
+    /**
+     * Wait for every connector to answer.
+     *
+     * @param begin The {@link System#nanoTime()} from which to measure the
+     *        time to ready, usually when the server was started
+     * @param deadline The {@link System#nanoTime()} by which the connectors
+     *        must answer
+     * @return The number of milliseconds from {@code begin} until each
+     *         connector answered, by connector name, in the order the
+     *         connectors were added
+     * @throws IOException If a connector did not answer by the deadline
+     */
+    Map<String, Long> await(long begin, long deadline) throws IOException, InterruptedException {
+        final Map<String, Long> result = new LinkedHashMap<>();
+
+        if (mode == Mode.NONE) {
+            return result;
+        }
+
+        final Map<String, Connector> pending = new LinkedHashMap<>(connectors);
+        long backoff = INITIAL_BACKOFF;
+
+        for (;;) {
+            for (Iterator<Map.Entry<String, Connector>> i = pending.entrySet().iterator(); i.hasNext();) {
+                final Map.Entry<String, Connector> entry = i.next();
+
+                if (answers(entry.getValue())) {
+                    result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                    i.remove();
+                }
+            }
+
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+            if (remaining <= 0) {
+                throw new IOException("Connectors did not accept connections in time: " + pending.keySet());
+            }
+
+            Thread.sleep(Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAXIMUM_BACKOFF);
+        }
+
+        // Report in the order the connectors were added.
+        final Map<String, Long> ordered = new LinkedHashMap<>();
+
+        for (String name : connectors.keySet()) {
+            ordered.put(name, result.get(name));
+        }
+
+        return ordered;
+    }
+
+    private boolean answers(Connector connector) {
+        try (Socket socket = new Socket()) {
+            socket.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), connector.port), CONNECT_TIMEOUT);
+
+            if (mode != Mode.WEBSOCKET || connector.secure) {
+                return true;
+            }
+
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+
+            final OutputStream out = socket.getOutputStream();
+            out.write((
+                "GET / HTTP/1.1\r\n" +
+                "Host: localhost:" + connector.port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "\r\n").getBytes(US_ASCII));
+            out.flush();
+
+            final String status =
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII)).readLine();
+
+            // Any HTTP response shows the connector is handling requests.
+            return status != null && status.startsWith("HTTP/");
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static final class Connector {
+        private final int port;
+        private final boolean secure;
+
+        Connector(int port, boolean secure) {
+            this.port = port;
+            this.secure = secure;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * Server class loaders kept between the executions of a Maven session, so a
+ * later server start reuses the classes defined for an earlier one.
+ *
+ * <p>
+ * A class loader is only handed to one server at a time. Executions that
+ * run while the cached class loader is in use, such as those of a parallel
+ * build, create their own. The cached class loaders are closed when the
+ * session ends.
+ * </p>
+ */
+final class ServerClassLoaderCache implements Closeable {
+
+    private final Map<String, BlockingClassLoader> idle = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Find the cache for a session.
+     */
+    static ServerClassLoaderCache of(MavenSession session) {
+        return SessionScope.of(session).get(
+            ServerClassLoaderCache.class.getName(), ServerClassLoaderCache::new);
+    }
+
+    /**
+     * Build the key for a class loader. Class loaders with the same key
+     * define the same classes.
+     *
+     * @param urls The class path
+     * @param sharedClasses The classes shared with the plugin
+     */
+    static String key(URL[] urls, Set<String> sharedClasses) {
+        return ClassPathIndex.checksum(urls) + " " + new TreeSet<>(sharedClasses);
+    }
+
+    /**
+     * Take an idle class loader.
+     *
+     * @return The class loader, or {@code null} if there is none with the
+     *         key. The caller should {@link #release} the class loader when
+     *         its server has stopped.
+     */
+    synchronized BlockingClassLoader acquire(String key) {
+        return idle.remove(key);
+    }
+
+    /**
+     * Return a class loader to the cache once its server has stopped, or
+     * close it if the cache already has an idle class loader with the same
+     * key.
+     *
+     * @param stoppedGracefully {@code false} if the server was forced to
+     *        stop. Its threads may still be using the class loader, so it is
+     *        closed rather than handed to another server.
+     * @return {@code true} if the class loader was kept
+     */
+    boolean release(String key, BlockingClassLoader classLoader, boolean stoppedGracefully)
+        throws IOException {
+
+        synchronized (this) {
+            if (stoppedGracefully && !closed && !idle.containsKey(key)) {
+                idle.put(key, classLoader);
+                return true;
+            }
+        }
+
+        classLoader.close();
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final List<BlockingClassLoader> classLoaders;
+
+        synchronized (this) {
+            closed = true;
+            classLoaders = new ArrayList<>(idle.values());
+            idle.clear();
+        }
+
+        IOException failure = null;
+
+        for (BlockingClassLoader classLoader : classLoaders) {
+            try {
+                classLoader.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "server class loader cache";
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * The servers started for a module, by server id.
+ *
+ * <p>
+ * A server started in the background is held as a pending start until an
+ * await or stop execution waits for it and registers the result.
+ * </p>
+ *
+ * <p>
+ * The registry is kept in the plugin context, so it is shared by the
+ * executions of the plugin for a module. It may be used by several threads
+ * at once.
+ * </p>
+ */
+final class ServerRegistry {
+
+    private static final String CONTEXT_KEY = "serverRegistry";
+
+    private final Map<String, RegisteredServer> servers = new LinkedHashMap<>();
+    private final Map<String, BackgroundStart> starting = new LinkedHashMap<>();
+
+    /**
+     * Find the registry in a plugin context, creating it if necessary.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static ServerRegistry of(Map pluginContext) {
+        synchronized (pluginContext) {
+            ServerRegistry registry = (ServerRegistry) pluginContext.get(CONTEXT_KEY);
+
+            if (registry == null) {
+                registry = new ServerRegistry();
+                pluginContext.put(CONTEXT_KEY, registry);
+            }
+
+            return registry;
+        }
+    }
+
+    /**
+     * Register a server.
+     *
+     * @return {@code false} if there is already a server, or a pending
+     *         start, with the id
+     */
+    synchronized boolean register(String id, RegisteredServer server) {
+        if (servers.containsKey(id) || starting.containsKey(id)) {
+            return false;
+        }
+
+        servers.put(id, server);
+        return true;
+    }
+
+    /**
+     * Record a server that is starting in the background.
+     *
+     * @return {@code false} if there is already a server, or a pending
+     *         start, with the id
+     */
+    synchronized boolean starting(String id, BackgroundStart start) {
+        if (servers.containsKey(id) || starting.containsKey(id)) {
+            return false;
+        }
+
+        starting.put(id, start);
+        return true;
+    }
+
+    /**
+     * Remove a pending start, so that its server can be registered.
+     *
+     * @return The start, or {@code null} if there was none with the id
+     */
+    synchronized BackgroundStart removeStarting(String id) {
+        return starting.remove(id);
+    }
+
+    /**
+     * @return The ids of the pending starts, in the order they began
+     */
+    synchronized List<String> startingIds() {
+        return new ArrayList<>(starting.keySet());
+    }
+
+    /**
+     * @return Whether there is a server, or a pending start, with the id
+     */
+    synchronized boolean contains(String id) {
+        return servers.containsKey(id) || starting.containsKey(id);
+    }
+
+    /**
+     * @return The server with an id, or {@code null}
+     */
+    synchronized RegisteredServer get(String id) {
+        return servers.get(id);
+    }
+
+    /**
+     * @return The most recently registered server, or {@code null}
+     */
+    synchronized RegisteredServer latest() {
+        RegisteredServer result = null;
+
+        for (RegisteredServer server : servers.values()) {
+            result = server;
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove a server.
+     *
+     * @return The server, or {@code null} if there was none with the id
+     */
+    synchronized RegisteredServer remove(String id) {
+        return servers.remove(id);
+    }
+
+    /**
+     * @return The ids of the servers, in the order they were registered
+     */
+    synchronized List<String> ids() {
+        return new ArrayList<>(servers.keySet());
+    }
+
+    /**
+     * A server started by, or handed to, a start execution.
+     */
+    static final class RegisteredServer {
+        private final EmbeddedDiffusion server;
+        private final BlockingClassLoader classLoader;
+        private final int port;
+        private final int sslPort;
+        private final String classLoaderKey;
+        private final String sharedServerKey;
+        private final ForkedServer forkedServer;
+
+        /**
+         * @param port The port of the client and HTTP connectors
+         * @param sslPort The port of the SSL connector
+         * @param classLoaderKey The key of the class loader in the session's
+         *        {@link ServerClassLoaderCache}, or {@code null} if the class
+         *        loader should be closed when the server stops
+         * @param sharedServerKey The key of the server in the session's
+         *        {@link SharedServers}, or {@code null} if it is not shared
+         */
+        RegisteredServer(EmbeddedDiffusion server,
+                         BlockingClassLoader classLoader,
+                         int port,
+                         int sslPort,
+                         String classLoaderKey,
+                         String sharedServerKey) {
+            this(server, classLoader, port, sslPort, classLoaderKey, sharedServerKey, null);
+        }
+
+        /**
+         * A server running in a forked JVM. It has no
+         * {@link EmbeddedDiffusion} or class loader in this JVM.
+         */
+        RegisteredServer(ForkedServer forkedServer, int port, int sslPort) {
+            this(null, null, port, sslPort, null, null, forkedServer);
+        }
+
+        private RegisteredServer(EmbeddedDiffusion server,
+                                 BlockingClassLoader classLoader,
+                                 int port,
+                                 int sslPort,
+                                 String classLoaderKey,
+                                 String sharedServerKey,
+                                 ForkedServer forkedServer) {
+            this.server = server;
+            this.classLoader = classLoader;
+            this.port = port;
+            this.sslPort = sslPort;
+            this.classLoaderKey = classLoaderKey;
+            this.sharedServerKey = sharedServerKey;
+            this.forkedServer = forkedServer;
+        }
+
+        /**
+         * @return The server, or {@code null} if it runs in a forked JVM
+         */
+        EmbeddedDiffusion getServer() {
+            return server;
+        }
+
+        BlockingClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        int getSslPort() {
+            return sslPort;
+        }
+
+        String getClassLoaderKey() {
+            return classLoaderKey;
+        }
+
+        String getSharedServerKey() {
+            return sharedServerKey;
+        }
+
+        /**
+         * @return The forked JVM running the server, or {@code null} if it
+         *         runs in this JVM
+         */
+        ForkedServer getForkedServer() {
+            return forkedServer;
+        }
+
+        /**
+         * @return A copy of this server that is registered as a shared
+         *         server with a key
+         */
+        RegisteredServer shared(String key) {
+            return new RegisteredServer(
+                server, classLoader, port, sslPort, classLoaderKey, key, forkedServer);
+        }
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.Arrays.asList;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import com.pushtechnology.diffusion.api.config.ConnectorConfig;
+import com.pushtechnology.diffusion.api.config.ServerConfig;
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * Starts embedded servers with the configuration of a start execution.
+ *
+ * <p>
+ * The configuration is copied when the starter is created, so a starter
+ * can outlive the execution that created it. The standby pool uses one to
+ * start servers for the later modules of the session; those modules are
+ * only given its servers if their configuration has the same
+ * {@link #key(boolean) key}. Files written for the servers, such as
+ * diffusion.home overlays and thread dumps, go under the directory the
+ * starter is given rather than the directory of any module.
+ * </p>
+ */
+final class ServerStarter {
+
+    /**
+     * Numbers the standby servers of the JVM, to name their overlays.
+     */
+    private static final AtomicInteger STANDBY_COUNT = new AtomicInteger();
+
+    private final Log log;
+    private final File directory;
+    private final List<URL> classPath;
+    private final Properties properties;
+    private final SystemProperties systemProperties;
+    private final boolean globalSystemProperties;
+    private final String diffusionConfigDir;
+    private final boolean isolateDiffusionHome;
+    private final Set<String> writableDirectories;
+    private final int port;
+    private final int sslPort;
+    private final int maxMessageSize;
+    private final String portRange;
+    private final File portLockDirectory;
+    private final long serverStartTimeout;
+    private final boolean waitForDeployments;
+    private final ReadinessProbe.Mode readinessProbe;
+    private final long slowStartThreshold;
+    private final long slowStartDumpInterval;
+    private final long drainTimeout;
+
+    /**
+     * Copy the configuration of a start execution.
+     *
+     * @param classPath The server class path
+     * @param properties The properties to give each server, including
+     *        diffusion.home if it is known
+     * @param directory Where to write files for the servers
+     */
+    ServerStarter(DiffusionStartMojo configuration,
+                  List<URL> classPath,
+                  Properties properties,
+                  File directory) throws MojoExecutionException {
+
+        this.log = configuration.getLog();
+        this.directory = directory;
+        this.classPath = Collections.unmodifiableList(asList(classPath.toArray(new URL[classPath.size()])));
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+        this.systemProperties = configuration.systemProperties;
+        this.globalSystemProperties = configuration.globalSystemProperties;
+        this.diffusionConfigDir = configuration.diffusionConfigDir;
+        this.isolateDiffusionHome = configuration.isolateDiffusionHome;
+        this.writableDirectories = Collections.unmodifiableSet(new HashSet<>(
+            asList(configuration.diffusionHomeWritableDirectories.trim().split("\\s*,\\s*"))));
+        this.port = configuration.port;
+        this.sslPort = configuration.sslPort;
+        this.maxMessageSize = configuration.maxMessageSize;
+        this.portRange = configuration.portRange;
+        this.portLockDirectory = configuration.portLockDirectory;
+        this.serverStartTimeout = configuration.serverStartTimeout;
+        this.waitForDeployments = configuration.waitForDeployments;
+        this.slowStartThreshold = configuration.slowStartThreshold;
+        this.slowStartDumpInterval = configuration.slowStartDumpInterval;
+        this.drainTimeout = configuration.drainTimeout;
+
+        try {
+            this.readinessProbe = ReadinessProbe.Mode.valueOf(
+                configuration.readinessProbe.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Invalid readinessProbe " + configuration.readinessProbe +
+                ", expected none, tcp or websocket", e);
+        }
+
+        final String home = properties.getProperty("diffusion.home");
+
+        if (isolateDiffusionHome && (home == null || home.isEmpty())) {
+            throw new MojoExecutionException(
+                "isolateDiffusionHome requires diffusion.home or DIFFUSION_HOME to be set");
+        }
+    }
+
+    List<URL> getClassPath() {
+        return classPath;
+    }
+
+    /**
+     * Build a key that identifies the configuration of the servers this
+     * starter starts. The directory is not part of the key.
+     *
+     * @param withPorts Whether to include the configured ports
+     */
+    String key(boolean withPorts) {
+        final StringBuilder key = new StringBuilder();
+
+        for (URL url : classPath) {
+            key.append(url).append(' ');
+        }
+
+        if (withPorts) {
+            key.append(port).append(' ').append(sslPort).append(' ');
+        }
+
+        key.append(maxMessageSize).append(' ')
+            .append(diffusionConfigDir).append(' ')
+            .append(new TreeMap<>(properties)).append(' ')
+            .append(globalSystemProperties).append(' ')
+            .append(isolateDiffusionHome).append(' ')
+            .append(new TreeSet<>(writableDirectories)).append(' ')
+            .append(portRange).append(' ')
+            .append(portLockDirectory).append(' ')
+            .append(serverStartTimeout).append(' ')
+            .append(waitForDeployments).append(' ')
+            .append(readinessProbe).append(' ')
+            .append(slowStartThreshold).append(' ')
+            .append(slowStartDumpInterval);
+
+        return key.toString();
+    }
+
+    /**
+     * Create a class loader for a server.
+     */
+    BlockingClassLoader newClassLoader() {
+        return new BlockingClassLoader(classPath,
+                Collections.<String>emptySet(),
+                Collections.singleton("*"),
+                DiffusionStartMojo.SHARED_CLASSES,
+                true,
+                new File(directory, "classpath.index"));
+    }
+
+    /**
+     * Choose the ports for a server, from portRange if it is set.
+     *
+     * @param ephemeral Whether to use free ports chosen by the operating
+     *        system, rather than port and sslPort, if there is no range
+     */
+    PortReservation reservePorts(boolean ephemeral) throws MojoExecutionException {
+        try {
+            if (portRange != null && !portRange.isEmpty()) {
+                final String[] bounds = portRange.trim().split("\\s*-\\s*");
+                final int low;
+                final int high;
+
+                try {
+                    low = Integer.parseInt(bounds[0]);
+                    high = Integer.parseInt(bounds[bounds.length - 1]);
+                }
+                catch (NumberFormatException e) {
+                    throw new MojoExecutionException("Invalid portRange " + portRange, e);
+                }
+
+                if (bounds.length != 2 || low <= 0 || high > 65535 || low > high) {
+                    throw new MojoExecutionException("Invalid portRange " + portRange);
+                }
+
+                return PortReservation.fromRange(portLockDirectory, low, high, 2);
+            }
+
+            return ephemeral ?
+                PortReservation.ephemeral(portLockDirectory, 2) :
+                PortReservation.fixed(port, sslPort);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Failed to reserve ports for Diffusion", e);
+        }
+    }
+
+    void release(PortReservation ports) {
+        try {
+            ports.close();
+        }
+        catch (IOException e) {
+            log.warn("Failed to release port reservation", e);
+        }
+    }
+
+    /**
+     * Start a server for the standby pool, on ports that are not the
+     * configured port and sslPort. Called on a pool thread.
+     */
+    StandbyPool.Standby startStandby() throws Exception {
+        final BlockingClassLoader serverClassLoader = newClassLoader();
+        final PortReservation ports;
+
+        try {
+            ports = reservePorts(true);
+        }
+        catch (MojoExecutionException | RuntimeException e) {
+            serverClassLoader.close();
+            throw e;
+        }
+
+        try {
+            final EmbeddedDiffusion server =
+                startAndWait(serverClassLoader, ports.getPort(0), ports.getPort(1),
+                    "standby-" + STANDBY_COUNT.incrementAndGet(), new StartupTimings());
+
+            return new StandbyPool.Standby(
+                server, serverClassLoader, ports.getPort(0), ports.getPort(1));
+        }
+        finally {
+            release(ports);
+        }
+    }
+
+    /**
+     * Start a server and wait for it to start. A server that fails to start
+     * in time is stopped, within the drain timeout.
+     *
+     * <p>
+     * If the server fails to start, the class loader is closed once the
+     * server has stopped, so the caller must not close it.
+     * </p>
+     */
+    EmbeddedDiffusion startAndWait(BlockingClassLoader serverClassLoader,
+                                   int port,
+                                   int sslPort,
+                                   String id,
+                                   StartupTimings timings)
+        throws MojoExecutionException {
+
+        final long begin = System.nanoTime();
+        // The threads the server starts inherit the group, which lets the
+        // watchdog tell them from the build's threads.
+        final ThreadGroup threads = new ThreadGroup("diffusion-" + id);
+        final StartWatchdog watchdog = slowStartThreshold > 0 ?
+            StartWatchdog.start(threads, slowStartThreshold, slowStartDumpInterval, log) : null;
+
+        try {
+            final EmbeddedDiffusion server;
+
+            try {
+                server = startDiffusion(threads, serverClassLoader, port, sslPort, id, timings);
+            }
+            catch (MojoExecutionException | RuntimeException e) {
+                closeQuietly(serverClassLoader);
+                throw e;
+            }
+
+            try {
+                long start = System.nanoTime();
+                awaitStarted(server);
+                timings.record("awaitStarted", start);
+
+                start = System.nanoTime();
+                awaitReady(embeddedConnectors(server.getConfig(), port, sslPort), begin);
+                timings.record("awaitReady", start);
+            }
+            catch (MojoExecutionException | RuntimeException e) {
+                if (watchdog != null) {
+                    writeThreadDumps(watchdog, id);
+                }
+
+                try {
+                    // A server that is too wedged to start may be too
+                    // wedged to stop.
+                    BoundedStop.stop(server, "Diffusion Server " + id, drainTimeout, log,
+                        gracefully -> closeQuietly(serverClassLoader));
+                }
+                catch (Exception suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+
+                throw e;
+            }
+
+            return server;
+        }
+        finally {
+            if (watchdog != null) {
+                watchdog.close();
+            }
+        }
+    }
+
+    private void closeQuietly(BlockingClassLoader serverClassLoader) {
+        try {
+            serverClassLoader.close();
+        }
+        catch (IOException e) {
+            log.warn("Failed to close Diffusion server class loader", e);
+        }
+    }
+
+    /**
+     * Write the thread dumps of a server that failed to start in time,
+     * including one taken now.
+     */
+    private void writeThreadDumps(StartWatchdog watchdog, String id) {
+        final File report = new File(directory,
+            "start-timeout-" + AbstractDiffusionMojo.toFileName(id) + ".json");
+
+        watchdog.dump();
+
+        try {
+            watchdog.writeReport(report, id);
+            log.error("Diffusion Server " + id + " failed to start, " +
+                watchdog.getDumpCount() + " thread dumps written to " + report);
+        }
+        catch (IOException e) {
+            log.warn("Failed to write thread dumps " + report, e);
+        }
+    }
+
+    /**
+     * @return A probe for the connectors of an embedded server
+     */
+    private ReadinessProbe embeddedConnectors(ServerConfig config, int port, int sslPort) {
+        final ReadinessProbe probe = newReadinessProbe();
+
+        for (String name : asList(DiffusionStartMojo.CLIENT_CONNECTOR,
+                                  DiffusionStartMojo.HTTP_CONNECTOR,
+                                  DiffusionStartMojo.SSL_CONNECTOR)) {
+            if (config.getConnector(name) != null) {
+                final boolean secure = name.equals(DiffusionStartMojo.SSL_CONNECTOR);
+                probe.addConnector(name, secure ? sslPort : port, secure);
+            }
+        }
+
+        return probe;
+    }
+
+    ReadinessProbe newReadinessProbe() {
+        return new ReadinessProbe(readinessProbe);
+    }
+
+    /**
+     * Wait for a server's connectors to accept connections, within
+     * serverStartTimeout of the server being started, and report how long
+     * each took.
+     *
+     * @param begin When the server was started, by {@link System#nanoTime()}
+     */
+    void awaitReady(ReadinessProbe probe, long begin) throws MojoExecutionException {
+        final Map<String, Long> times;
+
+        try {
+            times = probe.await(begin, begin + TimeUnit.MILLISECONDS.toNanos(serverStartTimeout));
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage() + " after " + serverStartTimeout / 1000 + "s", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+
+        for (Map.Entry<String, Long> time : times.entrySet()) {
+            log.info(time.getKey() + " ready after " + time.getValue() + "ms");
+        }
+    }
+
+    private void awaitStarted(EmbeddedDiffusion server) throws MojoExecutionException {
+        if (waitForDeployments) {
+            final CountDownLatch startLock = new CountDownLatch(1);
+            server.addLifecycleListener(new EmbeddedDiffusion.LifecycleListener() {
+                @Override
+                public void onStateChanged(EmbeddedDiffusion.State state) {
+                    if (state == EmbeddedDiffusion.State.STARTED) {
+                        startLock.countDown();
+                    }
+                }
+            });
+
+            try {
+                if (!startLock.await(serverStartTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new MojoExecutionException("Server failed to start after " + serverStartTimeout / 1000 + "s");
+                }
+            }
+            catch (InterruptedException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Check if a port is available. From SO.
+     */
+    static boolean portAvailable(int port) {
+        ServerSocket ss = null;
+        DatagramSocket ds = null;
+        try {
+            ss = new ServerSocket(port);
+            ss.setReuseAddress(true);
+            ds = new DatagramSocket(port);
+            ds.setReuseAddress(true);
+            return true;
+        } catch (IOException e) {
+        } finally {
+            if (ds != null) {
+                ds.close();
+            }
+
+            if (ss != null) {
+                try {
+                    ss.close();
+                } catch (IOException e) {
+                /* should not be thrown */
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void finishConfigurationBeforeStart(ServerConfig config, int port, int sslPort) throws Exception {
+        ConnectorConfig connector = config.getConnector(DiffusionStartMojo.CLIENT_CONNECTOR);
+        config.getManagement().setEnabled(false);
+        if (connector != null) {
+            if (!portAvailable(port)) {
+                throw new MojoExecutionException("Port " + port + " is not available and thus the server will not be able to start");
+            }
+            connector.setPort(port);
+        }
+        connector = config.getConnector(DiffusionStartMojo.HTTP_CONNECTOR);
+        if (connector != null) {
+            if (!portAvailable(port)) {
+                throw new MojoExecutionException("Port " + port + " is not available and thus the server will not be able to start");
+            }
+            connector.setPort(port);
+        }
+        connector = config.getConnector(DiffusionStartMojo.SSL_CONNECTOR);
+        if (connector != null) {
+            if (!portAvailable(sslPort)) {
+                throw new MojoExecutionException("Port " + sslPort + " is not available and thus the server will not be able to start");
+            }
+            connector.setPort(sslPort);
+        }
+        config.setMaximumMessageSize(maxMessageSize);
+    }
+
+    private void printSystemProperties() {
+        // print out which system properties were set up
+        if (log.isDebugEnabled()) {
+            if (systemProperties != null) {
+                for (SystemProperty prop : systemProperties.getSystemProperties()) {
+                    log.debug("Property " + prop.getName() + "=" + prop.getValue() + " was " + (prop.isSet() ? "set" : "skipped"));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The properties to give a server
+     */
+    Properties configureSystemProperties(String id) throws MojoExecutionException {
+        if (globalSystemProperties && systemProperties != null) {
+            systemProperties.applyToSystem();
+        }
+
+        final Properties props = new Properties();
+        props.putAll(properties);
+
+        if (isolateDiffusionHome) {
+            props.setProperty("diffusion.home",
+                overlayDiffusionHome(properties.getProperty("diffusion.home"), id));
+        }
+
+        printSystemProperties();
+
+        return props;
+    }
+
+    /**
+     * Create a private overlay of diffusion.home for a server.
+     *
+     * @return The path of the overlay
+     */
+    private String overlayDiffusionHome(String home, String id) throws MojoExecutionException {
+        final File overlay = new File(directory, "home/" + AbstractDiffusionMojo.toFileName(id));
+        final long start = System.nanoTime();
+
+        try {
+            DiffusionHomeOverlay.create(new File(home).toPath(), overlay.toPath(), writableDirectories);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Failed to create diffusion.home overlay " + overlay, e);
+        }
+
+        log.info("Created diffusion.home overlay " + overlay + " in " +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        return overlay.getAbsolutePath();
+    }
+
+    /**
+     * Create and start a server on a thread of a group, so that the
+     * threads it starts are in the group too.
+     */
+    private EmbeddedDiffusion startDiffusion(ThreadGroup threads,
+                                             ClassLoader serverClassLoader,
+                                             int port,
+                                             int sslPort,
+                                             String id,
+                                             StartupTimings timings)
+        throws MojoExecutionException {
+
+        try {
+            log.debug("Starting Diffusion Server ...");
+
+            long start = System.nanoTime();
+            final Properties properties = configureSystemProperties(id);
+            timings.record("configureSystemProperties", start);
+
+            final EmbeddedDiffusion server = runInGroup(threads, () -> {
+                long createStart = System.nanoTime();
+                final EmbeddedDiffusion created =
+                    DiffusionServerWrapper.createServer(properties, serverClassLoader);
+                timings.record("createServer", createStart);
+
+                createStart = System.nanoTime();
+                finishConfigurationBeforeStart(created.getConfig(), port, sslPort);
+                timings.record("finishConfigurationBeforeStart", createStart);
+
+                createStart = System.nanoTime();
+                created.start();
+                timings.record("start", createStart);
+                return created;
+            });
+
+            log.info("Started Diffusion Server");
+            return server;
+        }
+        catch (MojoExecutionException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new MojoExecutionException("Failed to start Diffusion", e);
+        }
+    }
+
+    /**
+     * Run an action on a new thread of a group and wait for it. If the
+     * calling thread is interrupted, the interrupt is passed on and the
+     * wait continues, as if the action ran on the calling thread.
+     */
+    private static <T> T runInGroup(ThreadGroup group, Callable<T> action) throws Exception {
+        final FutureTask<T> task = new FutureTask<>(action);
+        final Thread thread = new Thread(group, task, group.getName() + "-start");
+        thread.start();
+
+        boolean interrupted = false;
+
+        try {
+            for (;;) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                    thread.interrupt();
+                }
+                catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Values shared by all the executions of the plugin in a Maven session.
+ *
+ * <p>
+ * The plugin's classes are loaded once per build, so a scope is found
+ * through the session's execution request, which is shared by the copies of
+ * the session that Maven makes for each module. Values that are
+ * {@link Closeable} are closed, most recent first, when the session ends.
+ * </p>
+ *
+ * <p>
+ * The end of the session is detected through the request's
+ * {@link ExecutionListener}. If Maven is embedded without a listener,
+ * values are kept until the JVM exits.
+ * </p>
+ */
+final class SessionScope {
+
+    private static final Map<MavenExecutionRequest, SessionScope> SCOPES =
+        Collections.synchronizedMap(new IdentityHashMap<MavenExecutionRequest, SessionScope>());
+
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    private SessionScope() {
+    }
+
+    /**
+     * Find the scope for a session, creating it if necessary.
+     */
+    static SessionScope of(MavenSession session) {
+        final MavenExecutionRequest request = session.getRequest();
+
+        synchronized (SCOPES) {
+            SessionScope scope = SCOPES.get(request);
+
+            if (scope == null) {
+                scope = new SessionScope();
+                SCOPES.put(request, scope);
+
+                if (request.getExecutionListener() != null) {
+                    request.setExecutionListener(
+                        new SessionEndListener(request, request.getExecutionListener()));
+                }
+            }
+
+            return scope;
+        }
+    }
+
+    synchronized Object get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Get a value, storing the one supplied by a factory if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T get(String key, Supplier<T> factory) {
+        Object value = values.get(key);
+
+        if (value == null) {
+            value = factory.get();
+            values.put(key, value);
+        }
+
+        return (T) value;
+    }
+
+    synchronized void put(String key, Object value) {
+        values.put(key, value);
+    }
+
+    synchronized Object remove(String key) {
+        return values.remove(key);
+    }
+
+    private void end() {
+        final List<Object> ended;
+
+        synchronized (this) {
+            ended = new ArrayList<>(values.values());
+            values.clear();
+        }
+
+        Collections.reverse(ended);
+
+        for (Object value : ended) {
+            if (value instanceof Closeable) {
+                try {
+                    ((Closeable) value).close();
+                }
+                catch (IOException | RuntimeException e) {
+                    final Log log = PluginLog.getLog();
+
+                    if (log != null) {
+                        log.warn("Failed to release " + value + " at the end of the session", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the scope when the session ends, and otherwise passes events on to
+     * the listener that Maven installed.
+     */
+    private static final class SessionEndListener implements ExecutionListener {
+        private final MavenExecutionRequest request;
+        private final ExecutionListener delegate;
+
+        SessionEndListener(MavenExecutionRequest request, ExecutionListener delegate) {
+            this.request = request;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void sessionEnded(ExecutionEvent event) {
+            try {
+                final SessionScope scope = SCOPES.remove(request);
+
+                if (scope != null) {
+                    scope.end();
+                }
+            }
+            finally {
+                delegate.sessionEnded(event);
+            }
+        }
+
+        @Override
+        public void projectDiscoveryStarted(ExecutionEvent event) {
+            delegate.projectDiscoveryStarted(event);
+        }
+
+        @Override
+        public void sessionStarted(ExecutionEvent event) {
+            delegate.sessionStarted(event);
+        }
+
+        @Override
+        public void projectSkipped(ExecutionEvent event) {
+            delegate.projectSkipped(event);
+        }
+
+        @Override
+        public void projectStarted(ExecutionEvent event) {
+            delegate.projectStarted(event);
+        }
+
+        @Override
+        public void projectSucceeded(ExecutionEvent event) {
+            delegate.projectSucceeded(event);
+        }
+
+        @Override
+        public void projectFailed(ExecutionEvent event) {
+            delegate.projectFailed(event);
+        }
+
+        @Override
+        public void mojoSkipped(ExecutionEvent event) {
+            delegate.mojoSkipped(event);
+        }
+
+        @Override
+        public void mojoStarted(ExecutionEvent event) {
+            delegate.mojoStarted(event);
+        }
+
+        @Override
+        public void mojoSucceeded(ExecutionEvent event) {
+            delegate.mojoSucceeded(event);
+        }
+
+        @Override
+        public void mojoFailed(ExecutionEvent event) {
+            delegate.mojoFailed(event);
+        }
+
+        @Override
+        public void forkStarted(ExecutionEvent event) {
+            delegate.forkStarted(event);
+        }
+
+        @Override
+        public void forkSucceeded(ExecutionEvent event) {
+            delegate.forkSucceeded(event);
+        }
+
+        @Override
+        public void forkFailed(ExecutionEvent event) {
+            delegate.forkFailed(event);
+        }
+
+        @Override
+        public void forkedProjectStarted(ExecutionEvent event) {
+            delegate.forkedProjectStarted(event);
+        }
+
+        @Override
+        public void forkedProjectSucceeded(ExecutionEvent event) {
+            delegate.forkedProjectSucceeded(event);
+        }
+
+        @Override
+        public void forkedProjectFailed(ExecutionEvent event) {
+            delegate.forkedProjectFailed(event);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarFile;
+
+/**
+ * Jar files shared by all the server class loaders in the JVM.
+ *
+ * <p>
+ * Each jar is opened once, however many class loaders use it, and closed
+ * when the last of them releases it. Class bytes are not cached: each class
+ * loader keeps the classes it defines, and a second copy of their bytes
+ * would only add to the heap.
+ * </p>
+ */
+final class SharedJarCache {
+
+    private static final Map<String, SharedJar> JARS = new HashMap<>();
+
+    private SharedJarCache() {
+    }
+
+    /**
+     * Open a jar, or share the copy that is already open.
+     *
+     * @return A handle that must be closed when the caller no longer needs
+     *         the jar.
+     */
+    static Handle acquire(File file) throws IOException {
+        final String key = key(file);
+
+        synchronized (JARS) {
+            SharedJar jar = JARS.get(key);
+
+            if (jar == null) {
+                jar = new SharedJar(key, new JarFile(file));
+                JARS.put(key, jar);
+            }
+
+            ++jar.references;
+
+            return new Handle(jar);
+        }
+    }
+
+    /**
+     * @return The number of open handles for a jar.
+     */
+    static int references(File file) throws IOException {
+        synchronized (JARS) {
+            final SharedJar jar = JARS.get(key(file));
+            return jar == null ? 0 : jar.references;
+        }
+    }
+
+    private static String key(File file) throws IOException {
+        // A rebuilt jar is a different jar.
+        return file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static void release(SharedJar jar) throws IOException {
+        synchronized (JARS) {
+            if (--jar.references > 0) {
+                return;
+            }
+
+            JARS.remove(jar.key);
+        }
+
+        jar.jarFile.close();
+    }
+
+    private static final class SharedJar {
+        private final String key;
+        private final JarFile jarFile;
+        private int references;
+
+        SharedJar(String key, JarFile jarFile) {
+            this.key = key;
+            this.jarFile = jarFile;
+        }
+    }
+
+    /**
+     * One user's reference to a shared jar.
+     */
+    static final class Handle implements Closeable {
+        private final SharedJar jar;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Handle(SharedJar jar) {
+            this.jar = jar;
+        }
+
+        JarFile jarFile() {
+            return jar.jarFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                release(jar);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.logging.Log;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
+
+/**
+ * Servers shared by the modules of a Maven session.
+ *
+ * <p>
+ * Each module that uses a shared server holds a reference to it. A server
+ * with no references is left running, because a later module might use it,
+ * and stopped when the session ends.
+ * </p>
+ */
+final class SharedServers implements Closeable {
+
+    private final Map<String, SharedServer> servers = new HashMap<>();
+    private final Map<String, Object> locks = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Find the shared servers for a session.
+     */
+    static SharedServers of(MavenSession session) {
+        return SessionScope.of(session).get(
+            SharedServers.class.getName(), SharedServers::new);
+    }
+
+    /**
+     * Get the lock to hold while attaching to or starting the server for a
+     * configuration, so that only one server is started for it.
+     */
+    synchronized Object lock(String key) {
+        Object lock = locks.get(key);
+
+        if (lock == null) {
+            lock = new Object();
+            locks.put(key, lock);
+        }
+
+        return lock;
+    }
+
+    /**
+     * Take a reference to the server for a configuration.
+     *
+     * @return The server, or {@code null} if none has been started
+     */
+    synchronized SharedServer attach(String key) {
+        final SharedServer server = servers.get(key);
+
+        if (server != null) {
+            ++server.references;
+        }
+
+        return server;
+    }
+
+    /**
+     * Register a newly started server, with one reference.
+     *
+     * @throws IllegalStateException If the session has ended
+     */
+    synchronized void register(String key, SharedServer server) {
+        if (closed) {
+            throw new IllegalStateException("Session has ended");
+        }
+
+        server.references = 1;
+        servers.put(key, server);
+    }
+
+    /**
+     * Release a reference to a server. The server is left running even when
+     * no module uses it, because a later module might; it is stopped when
+     * the session ends.
+     *
+     * @return The number of modules still using the server, or {@code -1}
+     *         if it is not a shared server of this session, in which case
+     *         the caller should stop it
+     */
+    synchronized int detach(String key) {
+        final SharedServer server = servers.get(key);
+
+        if (server == null) {
+            return -1;
+        }
+
+        return --server.references;
+    }
+
+    /**
+     * Stop the servers that are still running.
+     */
+    @Override
+    public void close() {
+        final List<SharedServer> running;
+
+        synchronized (this) {
+            closed = true;
+            running = new ArrayList<>(servers.values());
+            servers.clear();
+        }
+
+        for (SharedServer server : running) {
+            server.stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "shared Diffusion servers";
+    }
+
+    /**
+     * A running server and the number of modules using it.
+     */
+    static final class SharedServer {
+        private final RegisteredServer server;
+        private int references;
+
+        SharedServer(RegisteredServer server) {
+            this.server = server;
+        }
+
+        /**
+         * @return The server, as registered by the module that started it
+         */
+        RegisteredServer getServer() {
+            return server;
+        }
+
+        private void stop() {
+            stopQuietly(server.getServer(), server.getClassLoader(), "shared Diffusion Server");
+        }
+    }
+
+    /**
+     * Stop a server that is not owned by any execution, and close its class
+     * loader once it has stopped, logging rather than propagating failure.
+     */
+    static void stopQuietly(EmbeddedDiffusion server,
+                            BlockingClassLoader classLoader,
+                            String description) {
+        final Log log = PluginLog.getLog();
+
+        try {
+            BoundedStop.stop(server, description, BoundedStop.DEFAULT_DRAIN_TIMEOUT, log,
+                gracefully -> closeQuietly(classLoader, log));
+        }
+        catch (Exception e) {
+            if (log != null) {
+                log.warn("Failed to stop " + description, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(BlockingClassLoader classLoader, Log log) {
+        try {
+            classLoader.close();
+        }
+        catch (IOException e) {
+            if (log != null) {
+                log.warn("Failed to close Diffusion server class loader", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.logging.Log;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * Servers started in the background, ready to be handed to start
+ * executions.
+ *
+ * <p>
+ * A session has at most one pool. It is started by the first standby or
+ * start execution that asks for one, from that execution's configuration,
+ * and keeps the same number of servers starting or started: each server
+ * that is taken is replaced. Its servers are only handed to executions with
+ * the same configuration. The servers that have not been taken are stopped
+ * when the session ends, including those that finish starting later.
+ * </p>
+ */
+final class StandbyPool implements Closeable {
+
+    /**
+     * Number of seconds to wait for servers that are starting when the pool
+     * is closed.
+     */
+    private static final long CLOSE_TIMEOUT = 60;
+
+    /**
+     * Starts a standby server.
+     */
+    interface Factory {
+        Standby start() throws Exception;
+    }
+
+    private final String key;
+    private final int size;
+    private final Factory factory;
+    private final ExecutorService executor;
+    private final LinkedList<CompletableFuture<Standby>> servers = new LinkedList<>();
+    private boolean closed;
+
+    private StandbyPool(String key, int size, Factory factory) {
+        this.key = key;
+        this.size = size;
+        this.factory = factory;
+        this.executor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread =
+                    new Thread(runnable, "diffusion-standby-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start the pool for a session and its servers, unless the session
+     * already has a pool.
+     *
+     * @param key Identifies the configuration of the servers
+     * @param size The number of servers to keep
+     * @param factory Starts a server. Only used if the pool is created.
+     * @return The session's pool, which may have a different configuration
+     */
+    static StandbyPool start(MavenSession session, String key, int size, Factory factory) {
+        return SessionScope.of(session).get(
+            StandbyPool.class.getName(),
+            () -> new StandbyPool(key, size, factory).fill());
+    }
+
+    /**
+     * Whether the pool's servers have a configuration.
+     */
+    boolean matches(String configuration) {
+        return key.equals(configuration);
+    }
+
+    /**
+     * Take a server from the pool, preferring one that has finished
+     * starting, and start another to replace it.
+     *
+     * @return The server, or {@code null} if the pool is closed or the server
+     *         failed to start
+     */
+    Standby take() throws InterruptedException {
+        Future<Standby> next = null;
+
+        synchronized (this) {
+            for (Iterator<CompletableFuture<Standby>> i = servers.iterator(); i.hasNext();) {
+                final Future<Standby> server = i.next();
+
+                if (server.isDone()) {
+                    i.remove();
+                    next = server;
+                    break;
+                }
+            }
+
+            if (next == null) {
+                next = servers.poll();
+            }
+
+            fill();
+        }
+
+        if (next == null) {
+            return null;
+        }
+
+        try {
+            return next.get();
+        }
+        catch (ExecutionException e) {
+            final Log log = PluginLog.getLog();
+
+            if (log != null) {
+                log.warn("Standby Diffusion Server failed to start", e.getCause());
+            }
+
+            return null;
+        }
+    }
+
+    private synchronized StandbyPool fill() {
+        while (!closed && servers.size() < size) {
+            servers.add(CompletableFuture.supplyAsync(this::startServer, executor));
+        }
+
+        return this;
+    }
+
+    private Standby startServer() {
+        try {
+            return factory.start();
+        }
+        catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Stop the servers that have not been taken, waiting for those that are
+     * starting.
+     */
+    @Override
+    public void close() {
+        close(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the servers that have not been taken. Servers that are still
+     * starting after the timeout are stopped once they have started.
+     */
+    void close(long timeout, TimeUnit unit) {
+        final List<CompletableFuture<Standby>> remaining;
+
+        synchronized (this) {
+            closed = true;
+            remaining = new ArrayList<>(servers);
+            servers.clear();
+        }
+
+        for (CompletableFuture<Standby> server : remaining) {
+            server.thenAccept(Standby::stop);
+        }
+
+        // Servers that have yet to begin starting never will.
+        executor.shutdownNow();
+
+        try {
+            executor.awaitTermination(timeout, unit);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "standby Diffusion servers";
+    }
+
+    /**
+     * A started server.
+     */
+    static final class Standby {
+        private final EmbeddedDiffusion server;
+        private final BlockingClassLoader classLoader;
+        private final int port;
+        private final int sslPort;
+
+        Standby(EmbeddedDiffusion server,
+                BlockingClassLoader classLoader,
+                int port,
+                int sslPort) {
+            this.server = server;
+            this.classLoader = classLoader;
+            this.port = port;
+            this.sslPort = sslPort;
+        }
+
+        EmbeddedDiffusion getServer() {
+            return server;
+        }
+
+        BlockingClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        int getSslPort() {
+            return sslPort;
+        }
+
+        private void stop() {
+            SharedServers.stopQuietly(server, classLoader, "standby Diffusion Server");
+        }
+    }
+}
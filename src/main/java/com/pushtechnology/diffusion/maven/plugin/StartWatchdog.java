@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Takes thread dumps of a server that is slow to start.
+ *
+ * <p>
+ * Once the soft threshold has passed without the watchdog being closed, the
+ * server's threads are dumped periodically. The server's threads are those
+ * in its thread group, the thread that created the watchdog, and any thread
+ * that owns a lock one of them is waiting for. Each dump records
+ * the state, CPU time, stack, held locks and awaited lock owner of each
+ * thread. Only the latest {@link #MAXIMUM_DUMPS} dumps are kept.
+ * </p>
+ */
+final class StartWatchdog implements Closeable {
+
+    /**
+     * The number of dumps to keep.
+     */
+    static final int MAXIMUM_DUMPS = 20;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final long begin = System.nanoTime();
+    private final long starter = Thread.currentThread().getId();
+    private final ThreadGroup group;
+    private final long softThreshold;
+    private final long interval;
+    private final Log log;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Deque<Dump> dumps = new ArrayDeque<>();
+
+    private StartWatchdog(ThreadGroup group, long softThreshold, long interval, Log log) {
+        this.group = group;
+        this.softThreshold = softThreshold;
+        this.interval = interval;
+        this.log = log;
+    }
+
+    /**
+     * Start a watchdog. Called by the thread that starts the server, before
+     * it is started.
+     *
+     * @param group The thread group the server is started in, which its
+     *        threads inherit
+     * @param softThreshold Number of milliseconds after which to begin
+     *        taking dumps
+     * @param interval Number of milliseconds between dumps
+     * @param log Where to report that dumps are being taken, or {@code null}
+     */
+    static StartWatchdog start(ThreadGroup group, long softThreshold, long interval, Log log) {
+        final StartWatchdog watchdog = new StartWatchdog(group, softThreshold, interval, log);
+        final Thread thread = new Thread(watchdog::run, "diffusion-start-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+        return watchdog;
+    }
+
+    private void run() {
+        try {
+            if (closed.await(softThreshold, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+
+            if (log != null) {
+                log.warn("Diffusion Server has not started after " + softThreshold +
+                    "ms, taking thread dumps every " + interval + "ms");
+            }
+
+            do {
+                dump();
+            }
+            while (!closed.await(interval, TimeUnit.MILLISECONDS));
+        }
+        catch (InterruptedException e) {
+            // Daemon thread, exit.
+        }
+    }
+
+    /**
+     * Take a dump now.
+     */
+    void dump() {
+        final ThreadInfo[] all = threads.dumpAllThreads(
+            threads.isObjectMonitorUsageSupported(), threads.isSynchronizerUsageSupported());
+        final Map<Long, ThreadInfo> byId = new HashMap<>();
+
+        for (ThreadInfo info : all) {
+            if (info != null) {
+                byId.put(info.getThreadId(), info);
+            }
+        }
+
+        final Map<Long, ThreadInfo> selected = new LinkedHashMap<>();
+
+        for (long id : serverThreadIds()) {
+            final ThreadInfo info = byId.get(id);
+
+            if (info != null) {
+                selected.put(id, info);
+            }
+        }
+
+        // Add the owners of the locks the server's threads wait for, and
+        // the owners of the locks they wait for.
+        final Deque<ThreadInfo> waiting = new ArrayDeque<>(selected.values());
+
+        while (!waiting.isEmpty()) {
+            final ThreadInfo owner = byId.get(waiting.remove().getLockOwnerId());
+
+            if (owner != null && selected.put(owner.getThreadId(), owner) == null) {
+                waiting.add(owner);
+            }
+        }
+
+        final Map<Long, Long> cpuTimes = new HashMap<>();
+
+        if (threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+            for (Long id : selected.keySet()) {
+                cpuTimes.put(id, threads.getThreadCpuTime(id));
+            }
+        }
+
+        final long[] deadlocked = threads.isSynchronizerUsageSupported() ?
+            threads.findDeadlockedThreads() : threads.findMonitorDeadlockedThreads();
+
+        final Dump dump = new Dump(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin),
+            new ArrayList<>(selected.values()),
+            cpuTimes,
+            deadlocked == null ? new long[0] : deadlocked);
+
+        synchronized (dumps) {
+            dumps.add(dump);
+
+            if (dumps.size() > MAXIMUM_DUMPS) {
+                dumps.remove();
+            }
+        }
+    }
+
+    private Set<Long> serverThreadIds() {
+        final Set<Long> result = new LinkedHashSet<>();
+        result.add(starter);
+
+        // Leave room for threads started while enumerating.
+        Thread[] members = new Thread[group.activeCount() + 16];
+        int count;
+
+        while ((count = group.enumerate(members, true)) == members.length) {
+            members = new Thread[members.length * 2];
+        }
+
+        for (int i = 0; i < count; ++i) {
+            result.add(members[i].getId());
+        }
+
+        return result;
+    }
+
+    int getDumpCount() {
+        synchronized (dumps) {
+            return dumps.size();
+        }
+    }
+
+    /**
+     * Write the dumps as JSON.
+     */
+    void writeReport(File file, String serverId) throws IOException {
+        final List<Dump> result;
+
+        synchronized (dumps) {
+            result = new ArrayList<>(dumps);
+        }
+
+        try (JsonWriter json = JsonWriter.create(file)) {
+            json.beginObject();
+            json.property("serverId", serverId);
+            json.property("softThresholdMillis", softThreshold);
+            json.property("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+
+            json.name("dumps").beginArray();
+
+            for (Dump dump : result) {
+                writeDump(json, dump);
+            }
+
+            json.endArray();
+
+            json.endObject();
+        }
+    }
+
+    private static void writeDump(JsonWriter json, Dump dump) throws IOException {
+        json.beginObject();
+        json.property("elapsedMillis", dump.elapsed);
+
+        json.name("deadlocked").beginArray();
+
+        for (long id : dump.deadlocked) {
+            json.value(id);
+        }
+
+        json.endArray();
+
+        json.name("threads").beginArray();
+
+        for (ThreadInfo info : dump.threads) {
+            final Long cpuTime = dump.cpuTimes.get(info.getThreadId());
+
+            json.beginObject()
+                .property("name", info.getThreadName())
+                .property("id", info.getThreadId())
+                .property("state", info.getThreadState().name());
+
+            if (cpuTime != null && cpuTime >= 0) {
+                json.property("cpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuTime));
+            }
+
+            if (info.getLockName() != null) {
+                json.property("waitingFor", info.getLockName());
+            }
+
+            if (info.getLockOwnerName() != null) {
+                json.property("lockOwner", info.getLockOwnerName())
+                    .property("lockOwnerId", info.getLockOwnerId());
+            }
+
+            json.name("lockedMonitors").beginArray();
+
+            for (MonitorInfo monitor : info.getLockedMonitors()) {
+                json.value(monitor + " at " + monitor.getLockedStackFrame());
+            }
+
+            json.endArray();
+
+            json.name("lockedSynchronizers").beginArray();
+
+            for (LockInfo lock : info.getLockedSynchronizers()) {
+                json.value(lock.toString());
+            }
+
+            json.endArray();
+
+            json.name("stack").beginArray();
+
+            for (StackTraceElement frame : info.getStackTrace()) {
+                json.value(frame.toString());
+            }
+
+            json.endArray();
+
+            json.endObject();
+        }
+
+        json.endArray();
+
+        json.endObject();
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+    }
+
+    private static final class Dump {
+        private final long elapsed;
+        private final List<ThreadInfo> threads;
+        private final Map<Long, Long> cpuTimes;
+        private final long[] deadlocked;
+
+        Dump(long elapsed, List<ThreadInfo> threads, Map<Long, Long> cpuTimes, long[] deadlocked) {
+            this.elapsed = elapsed;
+            this.threads = threads;
+            this.cpuTimes = cpuTimes;
+            this.deadlocked = deadlocked;
+        }
+    }
+}
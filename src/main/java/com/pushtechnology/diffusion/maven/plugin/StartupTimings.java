@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The time spent in each phase of starting a server.
+ *
+ * <p>
+ * Phases are reported in the order they first finished. A phase that runs
+ * more than once is reported as the sum of its runs. The total is measured
+ * from when the timings were created, so it includes time not spent in any
+ * phase.
+ * </p>
+ */
+final class StartupTimings {
+
+    private static final Pattern TOTAL =
+        Pattern.compile("\"totalMillis\"\\s*:\\s*(\\d+)");
+
+    private final long begin = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    /**
+     * Record a phase that has just finished.
+     *
+     * @param start When the phase started, by {@link System#nanoTime()}
+     */
+    synchronized void record(String phase, long start) {
+        phases.merge(phase, System.nanoTime() - start, Long::sum);
+    }
+
+    /**
+     * @return The number of milliseconds spent in each phase, by phase name
+     */
+    synchronized Map<String, Long> getPhases() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            result.put(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The number of milliseconds since the timings were created
+     */
+    long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+    }
+
+    /**
+     * Write the timings as JSON.
+     *
+     * @param totalMillis The total to report
+     */
+    void writeReport(File file, String serverId, long totalMillis) throws IOException {
+        try (JsonWriter json = JsonWriter.create(file)) {
+            json.beginObject();
+            json.property("serverId", serverId);
+            json.property("totalMillis", totalMillis);
+
+            json.name("phases").beginObject();
+
+            for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+                json.property(phase.getKey(), phase.getValue());
+            }
+
+            json.endObject();
+
+            json.endObject();
+        }
+    }
+
+    /**
+     * Read the total from a report written by
+     * {@link #writeReport(File, String, long)}.
+     *
+     * @return The total, or -1 if there is no report or it has no total
+     */
+    static long readTotalMillis(File file) throws IOException {
+        if (!file.isFile()) {
+            return -1;
+        }
+
+        final Matcher matcher = TOTAL.matcher(new String(Files.readAllBytes(file.toPath()), UTF_8));
+
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Whether a start took longer than a previous one by more than a
+     * threshold.
+     *
+     * @param previousMillis The previous total, or -1 if there was none
+     * @param thresholdPercent The allowed increase, as a percentage of the
+     *        previous total
+     */
+    static boolean isRegression(long previousMillis, long totalMillis, int thresholdPercent) {
+        return previousMillis >= 0 &&
+            totalMillis * 100 > previousMillis * (100L + thresholdPercent);
+    }
+}
@@ -22,15 +22,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 /**
  * SystemProperties
  *
  * Map of name to SystemProperty.
  * 
- * When a SystemProperty instance is added, if it has not
- * been already set (for example, via the command line Java system property)
- * then it will be set.
+ * The properties are given to each server through its own Properties,
+ * and are also set as JVM system properties unless globalSystemProperties
+ * is false, in which case servers that run in the same JVM do not see
+ * each other's values. A property that has already been set (for example,
+ * via the command line Java system property) keeps that value unless force
+ * is set.
  */
 public class SystemProperties
 {
@@ -56,10 +60,30 @@ public class SystemProperties
     public void setSystemProperty (SystemProperty prop)
     {
         properties.put(prop.getName(), prop);
-        if (!force)
-            prop.setIfNotSetAlready();
-        else
-            prop.setAnyway();
+    }
+
+    /**
+     * Add the properties to those given to a server.
+     */
+    public void applyTo (Properties serverProperties)
+    {
+        for (SystemProperty prop : properties.values())
+            prop.applyTo(serverProperties, force);
+    }
+
+    /**
+     * Set the properties as JVM system properties, visible to every server
+     * in the JVM.
+     */
+    public void applyToSystem ()
+    {
+        for (SystemProperty prop : properties.values())
+        {
+            if (!force)
+                prop.setIfNotSetAlready();
+            else
+                prop.setAnyway();
+        }
     }
     
     public SystemProperty getSystemProperty(String name)
@@ -18,11 +18,13 @@
 
 package com.pushtechnology.diffusion.maven.plugin;
 
+import java.util.Properties;
+
 /**
  * SystemProperty
  * 
  * Provides the ability to set System properties
- * for the mojo execution. A value will only 
+ * for a server. A value will only 
  * be set if it is not set already. That is, if
  * it has been set on the command line or by the system,
  * it will not be overridden by settings in the 
@@ -100,4 +102,23 @@ public class SystemProperty
         isSet=true;
     }
 
+    /** Add this property to those given to a server. If it is
+     * already a system property, the system value is used
+     * unless force is set.
+     */
+    void applyTo(Properties serverProperties, boolean force)
+    {
+        final String current = System.getProperty(getName());
+
+        if (force || current == null)
+        {
+            serverProperties.setProperty(getName(), (getValue()==null?"":getValue()));
+            isSet=true;
+        }
+        else
+        {
+            serverProperties.setProperty(getName(), current);
+        }
+    }
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Test;
+
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
+
+/**
+ * Unit tests for {@link BackgroundStart}.
+ */
+public class BackgroundStartTest {
+
+    private final List<RegisteredServer> stopped = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testAwaitReturnsServer() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final RegisteredServer server = server();
+        final BackgroundStart start = new BackgroundStart("a", () -> server, 10000, stopped::add);
+
+        start.begin(session, "module:a");
+
+        assertSame(server, start.await());
+
+        // Stopping the server is now up to the caller.
+        session.end();
+        assertEquals(0, stopped.size());
+    }
+
+    @Test
+    public void testFailedStartIsPropagated() throws Exception {
+        final BackgroundStart start = new BackgroundStart("a", () -> {
+            throw new MojoExecutionException("No licence");
+        }, 10000, stopped::add);
+
+        start.begin(null, "module:a");
+
+        try {
+            start.await();
+            fail("Expected ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertEquals("No licence", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testServerIsStoppedIfItStartsAfterTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RegisteredServer server = server();
+        final BackgroundStart start = new BackgroundStart("a", () -> {
+            // A start that ignores interruption.
+            for (;;) {
+                try {
+                    if (release.await(10, SECONDS)) {
+                        return server;
+                    }
+                }
+                catch (InterruptedException e) {
+                    continue;
+                }
+            }
+        }, 100, stopped::add);
+
+        start.begin(null, "module:a");
+
+        try {
+            start.await();
+            fail("Expected TimeoutException");
+        }
+        catch (TimeoutException e) {
+            // Expected.
+        }
+        catch (InterruptedException e) {
+            fail("The test thread was interrupted");
+        }
+
+        assertEquals(0, stopped.size());
+
+        release.countDown();
+        start.close();
+
+        assertEquals(1, stopped.size());
+        assertSame(server, stopped.get(0));
+    }
+
+    @Test
+    public void testSessionEndStopsServerThatWasNotAwaited() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final CountDownLatch started = new CountDownLatch(1);
+        final RegisteredServer server = server();
+        final BackgroundStart start = new BackgroundStart("a", () -> {
+            started.countDown();
+            return server;
+        }, 10000, stopped::add);
+
+        start.begin(session, "module:a");
+        assertTrue(started.await(10, SECONDS));
+
+        // The module's build fails before an await or stop execution.
+        session.end();
+
+        assertEquals(1, stopped.size());
+        assertSame(server, stopped.get(0));
+    }
+
+    @Test
+    public void testSessionEndInterruptsStart() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final CountDownLatch starting = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final BackgroundStart start = new BackgroundStart("a", () -> {
+            starting.countDown();
+
+            try {
+                Thread.sleep(60000);
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+
+            return server();
+        }, 10000, stopped::add);
+
+        start.begin(session, "module:a");
+        assertTrue(starting.await(10, SECONDS));
+
+        session.end();
+
+        assertEquals(0, interrupted.getCount());
+        assertEquals(0, stopped.size());
+    }
+
+    private static RegisteredServer server() {
+        return new RegisteredServer(
+            new DiffusionServerStub().server(), DiffusionServerStub.classLoader(), 8080, 8443, null, null);
+    }
+}
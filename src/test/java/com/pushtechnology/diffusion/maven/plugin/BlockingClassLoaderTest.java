@@ -0,0 +1,662 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link BlockingClassLoader}.
+ */
+public class BlockingClassLoaderTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(asList(names));
+    }
+
+    @Test
+    public void testClassesMatchExactNames() {
+        final BlockingClassLoader.Classes classes =
+            new BlockingClassLoader.Classes(names("a.b.C", "META-INF/x.xml"));
+
+        assertTrue(classes.matches("a.b.C", false));
+        assertTrue(classes.matches("META-INF/x.xml", true));
+        assertFalse(classes.matches("a.b.Cd", false));
+        assertFalse(classes.matches("a.b", false));
+        assertFalse(classes.matches("a/b/C", true));
+    }
+
+    @Test
+    public void testClassesMatchPrefixes() {
+        final BlockingClassLoader.Classes classes =
+            new BlockingClassLoader.Classes(names("javax.xml.*", "com.sun,*", "a.b.Foo*"));
+
+        assertTrue(classes.matches("javax.xml.bind.JAXB", false));
+        assertTrue(classes.matches("javax/xml/bind/jaxb.properties", true));
+        assertTrue(classes.matches("a.b.Foo", false));
+        assertTrue(classes.matches("a.b.FooBar", false));
+        assertTrue(classes.matches("com.sun,x", false));
+        assertFalse(classes.matches("javax.xml", false));
+        assertFalse(classes.matches("javax/xml/bind", false));
+        assertFalse(classes.matches("com.sun.Foo", false));
+        assertFalse(classes.matches("a.b.Fo", false));
+        assertFalse(classes.matches("", false));
+    }
+
+    @Test
+    public void testClassesMatchEverything() {
+        final BlockingClassLoader.Classes classes =
+            new BlockingClassLoader.Classes(names("*", "a.b.*"));
+
+        assertTrue(classes.matches("", false));
+        assertTrue(classes.matches("x.Y", false));
+        assertTrue(classes.matches("x/y.txt", true));
+    }
+
+    @Test
+    public void testClassesShorterPrefixWins() {
+        final BlockingClassLoader.Classes classes =
+            new BlockingClassLoader.Classes(names("a.b.c.*", "a.b.*", "a.bc*"));
+
+        assertTrue(classes.matches("a.b.X", false));
+        assertTrue(classes.matches("a.b.c.X", false));
+        assertTrue(classes.matches("a.bcd", false));
+        assertFalse(classes.matches("a.X", false));
+    }
+
+    @Test
+    public void testClassesAgreeWithLinearScan() {
+        final Set<String> wildcards =
+            names("com.pushtechnology.diffusion.api.conflation.*",
+                  "com.pushtechnology.diffusion.api.config.*",
+                  "com.pushtechnology.diffusion.api.LogDescription",
+                  "javax.xml.*",
+                  "com.sun,*",
+                  "org/slf4j/*");
+
+        final BlockingClassLoader.Classes classes =
+            new BlockingClassLoader.Classes(wildcards);
+
+        final String[] candidates = {
+            "com.pushtechnology.diffusion.api.config.ServerConfig",
+            "com/pushtechnology/diffusion/api/config/ServerConfig.class",
+            "com.pushtechnology.diffusion.api.LogDescription",
+            "com.pushtechnology.diffusion.api.LogDescription$LogLevel",
+            "com.pushtechnology.diffusion.api.conflatio",
+            "javax.xml.XMLConstants",
+            "javax/xml/XMLConstants.class",
+            "org.slf4j.Logger",
+            "org/slf4j/Logger.class",
+            "java.lang.String",
+        };
+
+        for (String candidate : candidates) {
+            for (boolean isResource : new boolean[] { false, true }) {
+                assertEquals(candidate,
+                             linearMatch(wildcards, candidate, isResource),
+                             classes.matches(candidate, isResource));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadingLocksArePerClass() throws Exception {
+        try (CountingClassLoader loader = new CountingClassLoader()) {
+            assertNotSame(loader.lock("a.A"), loader.lock("a.B"));
+            assertSame(loader.lock("a.A"), loader.lock("a.A"));
+        }
+    }
+
+    @Test
+    public void testConcurrentLoadingDefinesEachClassOnce() throws Exception {
+        final List<String> classNames = pluginClassNames();
+        final int threads = 8;
+        final Map<String, Set<Class<?>>> loaded = new ConcurrentHashMap<>();
+        final CountDownLatch go = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (CountingClassLoader loader = new CountingClassLoader()) {
+            final List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; ++t) {
+                final List<String> names = new ArrayList<>(classNames);
+                Collections.shuffle(names);
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        go.await();
+
+                        for (String name : names) {
+                            final Class<?> c = loader.loadClass(name);
+                            loaded.putIfAbsent(name, ConcurrentHashMap.<Class<?>>newKeySet());
+                            loaded.get(name).add(c);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            go.countDown();
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            for (String name : classNames) {
+                assertEquals(name, 1, loaded.get(name).size());
+                assertEquals(name, 1, loader.definitions(name));
+                assertSame(name, loader, loaded.get(name).iterator().next().getClassLoader());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDifferentClassesLoadConcurrently() throws Exception {
+        final String first = PluginLog.class.getName();
+        final String second = JsonWriter.class.getName();
+        final CountDownLatch together = new CountDownLatch(2);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try (CountingClassLoader loader = new CountingClassLoader()) {
+            // Each definition waits inside findClass for the other, so both
+            // loads only succeed if they run at the same time.
+            loader.rendezvous(together, first, second);
+
+            final Future<Class<?>> firstClass = executor.submit(() -> loader.loadClass(first));
+            final Future<Class<?>> secondClass = executor.submit(() -> loader.loadClass(second));
+
+            assertSame(loader, firstClass.get().getClassLoader());
+            assertSame(loader, secondClass.get().getClassLoader());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGrandparentMissesAreRemembered() throws Exception {
+        final String name =
+            BlockingClassLoader.class.getPackage().getName() + ".NoSuchClass";
+
+        try (CountingClassLoader loader = new CountingClassLoader(true)) {
+            for (int i = 0; i < 3; ++i) {
+                try {
+                    loader.loadClass(name);
+                    fail("Expected ClassNotFoundException");
+                }
+                catch (ClassNotFoundException e) {
+                    // Expected.
+                }
+            }
+
+            assertSame(String.class, loader.loadClass("java.lang.String"));
+
+            assertEquals(1, loader.getGrandparentHitCount());
+            assertEquals(1, loader.getGrandparentMissCount());
+            assertEquals(2, loader.getGrandparentMissAvoidedCount());
+        }
+    }
+
+    @Test
+    public void testIndexedJarLoading() throws Exception {
+        final File directory = temporary.newFolder("index");
+        final File jar = pluginJar(directory);
+        final URL jarURL = jar.toURI().toURL();
+        final File indexCache = new File(directory, "classpath.index");
+        final String packagePath =
+            BlockingClassLoader.class.getPackage().getName().replace('.', '/');
+        final String resourceName = packagePath + "/BlockingClassLoader.class";
+
+        try (URLClassLoader reference = new URLClassLoader(new URL[] { jarURL }, null);
+             BlockingClassLoader loader = newJarLoader(jarURL, indexCache)) {
+
+            final Class<?> c = loader.loadClass(BlockingClassLoader.class.getName());
+            assertSame(loader, c.getClassLoader());
+            assertEquals(jarURL, c.getProtectionDomain().getCodeSource().getLocation());
+            assertEquals(BlockingClassLoader.class.getPackage().getName(),
+                         c.getPackage().getName());
+
+            assertEquals(reference.findResource(resourceName),
+                         loader.getResource(resourceName));
+            assertEquals(1, Collections.list(loader.getResources(resourceName)).size());
+            assertNull(loader.getResource(packagePath + "/Missing.class"));
+            assertNull(loader.getResource("no/such/package/Missing.class"));
+            assertFalse(loader.getResources("no/such/package/Missing.class").hasMoreElements());
+
+            try (InputStream in = loader.getResourceAsStream(resourceName)) {
+                assertNotNull(in);
+            }
+        }
+
+        assertTrue(indexCache.isFile());
+
+        try (BlockingClassLoader loader = newJarLoader(jarURL, indexCache)) {
+            assertSame(loader,
+                       loader.loadClass(BlockingClassLoader.class.getName()).getClassLoader());
+        }
+    }
+
+    @Test
+    public void testResourceLookupsAreCachedUntilClose() throws Exception {
+        final String name =
+            BlockingClassLoader.class.getName().replace('.', '/') + ".class";
+        final String missing =
+            BlockingClassLoader.class.getPackage().getName().replace('.', '/') +
+            "/missing.txt";
+
+        final CountingClassLoader loader = new CountingClassLoader();
+
+        try {
+            final URL url = loader.getResource(name);
+            assertNotNull(url);
+            assertEquals(url, loader.getResource(name));
+            assertNull(loader.getResource(missing));
+            assertNull(loader.getResource(missing));
+            assertEquals(2, loader.resourceLookups());
+
+            assertEquals(singletonList(url), Collections.list(loader.getResources(name)));
+            assertEquals(singletonList(url), Collections.list(loader.getResources(name)));
+            assertEquals(3, loader.resourceLookups());
+        }
+        finally {
+            loader.close();
+        }
+
+        loader.getResource(name);
+        assertEquals(4, loader.resourceLookups());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        final File directory = temporary.newFolder("statistics");
+        final URL jar = pluginJar(directory).toURI().toURL();
+        final String resourceName =
+            BlockingClassLoader.class.getName().replace('.', '/') + ".class";
+
+        try (BlockingClassLoader loader = newJarLoader(jar, null)) {
+            loader.loadClass(BlockingClassLoader.class.getName());
+            loader.loadClass("java.lang.String");
+            loader.getResource(resourceName);
+            loader.getResource(resourceName);
+
+            final ClassLoadingStatistics statistics = loader.getStatistics();
+
+            assertTrue(statistics.getClassCount(BlockingClassLoader.Route.ISOLATED) >= 1);
+            assertTrue(statistics.getClassCount(BlockingClassLoader.Route.DEFAULT) >= 1);
+            assertEquals(1, statistics.getResourceCount(BlockingClassLoader.Route.ISOLATED));
+            assertEquals(1, statistics.getResourceCacheHitCount());
+            assertTrue(statistics.getBytesDefined() > 0);
+            assertFalse(statistics.getSlowest().isEmpty());
+            assertTrue(statistics.getSlowest().size() <= ClassLoadingStatistics.SLOWEST);
+
+            final File report = new File(directory, "report/classloading.json");
+            statistics.writeReport(report);
+
+            final String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+            assertTrue(json, json.contains("\"isolated\": {"));
+            assertTrue(json, json.contains("\"bytesDefined\": " + statistics.getBytesDefined()));
+            assertTrue(json, json.contains("\"name\": \"" + BlockingClassLoader.class.getName()));
+        }
+    }
+
+    @Test
+    public void testRecordAndPreloadClasses() throws Exception {
+        final File directory = temporary.newFolder("preload");
+        final URL jar = pluginJar(directory).toURI().toURL();
+        final File classList = new File(directory, "preload-classes.txt");
+        final String name = BlockingClassLoader.class.getName();
+
+        try (BlockingClassLoader loader = newJarLoader(jar, null)) {
+            assertNull(ClassPreloader.start(classList, loader, 2));
+
+            loader.recordDefinedClasses();
+            loader.loadClass(name);
+            ClassPreloader.record(classList, loader);
+        }
+
+        try (BlockingClassLoader loader = newJarLoader(jar, null)) {
+            final ClassPreloader preloader = ClassPreloader.start(classList, loader, 2);
+            assertNotNull(preloader);
+            assertTrue(preloader.getClassCount() >= 1);
+
+            final long deadline = System.currentTimeMillis() + 10000;
+
+            while (preloader.getLoadedCount() < preloader.getClassCount() &&
+                   System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            preloader.stop();
+
+            assertEquals(preloader.getClassCount(), preloader.getLoadedCount());
+            assertSame(loader, loader.loadClass(name).getClassLoader());
+        }
+
+        // A changed class path invalidates the list.
+        assertTrue(new File(directory, "plugin.jar").setLastModified(0));
+
+        try (BlockingClassLoader loader = newJarLoader(jar, null)) {
+            assertNull(ClassPreloader.start(classList, loader, 2));
+        }
+    }
+
+    @Test
+    public void testLoadersShareJars() throws Exception {
+        final File directory = temporary.newFolder("shared");
+        final File jar = pluginJar(directory);
+        final String name = BlockingClassLoader.class.getName();
+
+        final BlockingClassLoader loader1 = newJarLoader(jar.toURI().toURL(), null);
+        final BlockingClassLoader loader2 = newJarLoader(jar.toURI().toURL(), null);
+
+        try {
+            final Class<?> class1 = loader1.loadClass(name);
+            final Class<?> class2 = loader2.loadClass(name);
+
+            assertNotSame(class1, class2);
+            assertEquals(2, SharedJarCache.references(jar));
+
+            loader1.close();
+            assertEquals(1, SharedJarCache.references(jar));
+            loader1.close();
+            assertEquals(1, SharedJarCache.references(jar));
+        }
+        finally {
+            loader1.close();
+            loader2.close();
+        }
+
+        assertEquals(0, SharedJarCache.references(jar));
+    }
+
+    @Test
+    public void testClosedLoaderDoesNotReopenJars() throws Exception {
+        final File directory = temporary.newFolder("reopen");
+        final File jar = pluginJar(directory);
+        final BlockingClassLoader loader =
+            newJarLoader(jar.toURI().toURL(), new File(directory, "classpath.index"));
+
+        loader.loadClass(BlockingClassLoader.class.getName());
+        assertEquals(1, SharedJarCache.references(jar));
+
+        loader.close();
+
+        try {
+            loader.loadClass(ClassPathIndex.class.getName());
+            fail("Expected ClassNotFoundException");
+        }
+        catch (ClassNotFoundException e) {
+            // Expected.
+        }
+
+        assertEquals(0, SharedJarCache.references(jar));
+    }
+
+    @Test
+    public void testClosedLoaderIsCollected() throws Exception {
+        final File directory = temporary.newFolder("collected");
+        final File jar = pluginJar(directory);
+
+        final Reference<ClassLoader> loader =
+            loadAndClose(jar, new File(directory, "classpath.index"));
+
+        for (int i = 0; i < 50 && loader.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        assertNull(loader.get());
+        assertEquals(0, SharedJarCache.references(jar));
+    }
+
+    private static Reference<ClassLoader> loadAndClose(File jar, File indexCache)
+        throws Exception {
+
+        final BlockingClassLoader loader = newJarLoader(jar.toURI().toURL(), indexCache);
+
+        try {
+            for (String name : pluginClassNames()) {
+                Class.forName(name, true, loader);
+            }
+        }
+        finally {
+            loader.close();
+        }
+
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    private static BlockingClassLoader newJarLoader(URL jar, File indexCache) {
+        return new BlockingClassLoader(
+            new URLClassLoader(new URL[0], BlockingClassLoaderTest.class.getClassLoader()),
+            singletonList(jar),
+            Collections.<String>emptySet(),
+            singleton(BlockingClassLoader.class.getPackage().getName() + ".*"),
+            Collections.<String>emptySet(),
+            false,
+            indexCache);
+    }
+
+    /**
+     * Package the plugin classes into a jar.
+     */
+    private static File pluginJar(File directory) throws IOException {
+        final File jar = new File(directory, "plugin.jar");
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        try (JarOutputStream out =
+                 new JarOutputStream(new FileOutputStream(jar), manifest)) {
+
+            for (String name : pluginClassNames()) {
+                final String entryName = name.replace('.', '/') + ".class";
+                out.putNextEntry(new JarEntry(entryName));
+                Files.copy(new File(classesDirectory(), entryName).toPath(), out);
+                out.closeEntry();
+            }
+        }
+
+        return jar;
+    }
+
+    /**
+     * The names of the plugin's own classes, which the test loaders isolate.
+     */
+    private static List<String> pluginClassNames() {
+        final File root = classesDirectory();
+        final String packageName = BlockingClassLoader.class.getPackage().getName();
+        final File[] files =
+            new File(root, packageName.replace('.', '/')).listFiles();
+
+        final List<String> result = new ArrayList<>();
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(".class") && !name.equals("package-info.class")) {
+                result.add(packageName + "." +
+                           name.substring(0, name.length() - ".class".length()));
+            }
+        }
+
+        assertFalse(result.isEmpty());
+        return result;
+    }
+
+    private static File classesDirectory() {
+        try {
+            return new File(BlockingClassLoader.class.getProtectionDomain()
+                            .getCodeSource().getLocation().toURI());
+        }
+        catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Isolates the plugin classes, counting the definitions of each.
+     */
+    private static final class CountingClassLoader extends BlockingClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final Map<String, AtomicInteger> m_definitions =
+            new ConcurrentHashMap<>();
+        private final AtomicInteger m_resourceLookups = new AtomicInteger();
+        private volatile CountDownLatch m_rendezvous;
+        private volatile Set<String> m_rendezvousNames = Collections.emptySet();
+
+        CountingClassLoader() throws Exception {
+            this(false);
+        }
+
+        CountingClassLoader(boolean respectGrandparents) throws Exception {
+            super(new URLClassLoader(new URL[0],
+                                     BlockingClassLoaderTest.class.getClassLoader()),
+                  singletonList(classesDirectory().toURI().toURL()),
+                  Collections.<String>emptySet(),
+                  singleton(BlockingClassLoader.class.getPackage().getName() + ".*"),
+                  Collections.<String>emptySet(),
+                  respectGrandparents);
+        }
+
+        /**
+         * Make the definitions of some classes wait inside
+         * {@link #findClass} until the latch is released.
+         */
+        void rendezvous(CountDownLatch latch, String... names) {
+            m_rendezvousNames = names(names);
+            m_rendezvous = latch;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            m_definitions.putIfAbsent(name, new AtomicInteger());
+            m_definitions.get(name).incrementAndGet();
+
+            final CountDownLatch rendezvous = m_rendezvous;
+
+            if (rendezvous != null && m_rendezvousNames.contains(name)) {
+                rendezvous.countDown();
+
+                try {
+                    if (!rendezvous.await(10, TimeUnit.SECONDS)) {
+                        throw new ClassNotFoundException(name + " was not loaded concurrently");
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+
+            return super.findClass(name);
+        }
+
+        @Override
+        public URL findResource(String name) {
+            m_resourceLookups.incrementAndGet();
+            return super.findResource(name);
+        }
+
+        @Override
+        public Enumeration<URL> findResources(String name) throws IOException {
+            m_resourceLookups.incrementAndGet();
+            return super.findResources(name);
+        }
+
+        int resourceLookups() {
+            return m_resourceLookups.get();
+        }
+
+        Object lock(String name) {
+            return getClassLoadingLock(name);
+        }
+
+        int definitions(String name) {
+            final AtomicInteger count = m_definitions.get(name);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    private static boolean linearMatch(Set<String> wildcards,
+                                       String name,
+                                       boolean isResource) {
+        final String packageName = isResource ? name.replace('/', '.') : name;
+
+        for (String wildcard : wildcards) {
+            final int index = wildcard.indexOf('*');
+
+            if (index >= 0 ?
+                packageName.startsWith(wildcard.substring(0, index)) :
+                wildcard.equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
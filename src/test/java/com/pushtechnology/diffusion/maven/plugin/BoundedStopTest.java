@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * Unit tests for {@link BoundedStop}.
+ */
+public class BoundedStopTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    private final List<Boolean> released = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testGracefulStop() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        assertTrue(BoundedStop.stop(server(stopped::countDown), "server", 5000, null, released::add));
+        assertEquals(0, stopped.getCount());
+        assertEquals(singletonList(true), released);
+    }
+
+    @Test
+    public void testStopIsForcedAfterDrainTimeout() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        final long start = System.currentTimeMillis();
+
+        assertFalse(BoundedStop.stop(server(() -> {
+            try {
+                Thread.sleep(60000);
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }), "server", 100, null, released::add));
+
+        assertEquals(0, interrupted.getCount());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(singletonList(false), released);
+    }
+
+    @Test
+    public void testStopFailureIsPropagated() throws Exception {
+        try {
+            BoundedStop.stop(server(() -> {
+                throw new IllegalStateException("failed");
+            }), "server", 5000, null, released::add);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        assertEquals(singletonList(false), released);
+    }
+
+    @Test
+    public void testServerThatKeepsStoppingIsNotReleased() throws Exception {
+        final CountDownLatch finish = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        try {
+            BoundedStop.stop(server(() -> {
+                // A stop that ignores interruption.
+                for (;;) {
+                    try {
+                        finish.await();
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+            }), "server", 100, null, gracefully -> {
+                released.add(gracefully);
+                finished.countDown();
+            });
+            fail("Expected TimeoutException");
+        }
+        catch (TimeoutException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("may still hold its ports"));
+        }
+
+        // The class loader must not be closed while the server is stopping.
+        assertEquals(emptyList(), released);
+
+        finish.countDown();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(singletonList(false), released);
+    }
+
+    @Test
+    public void testForkedServerStopsGracefully() throws Exception {
+        final ForkedServer server = fork();
+
+        assertTrue(BoundedStop.stop(server, "server", 30000, null));
+        assertTrue(ForkedServerStub.read(server.getLog()).contains("Stub server stopping"));
+    }
+
+    @Test
+    public void testForkedServerIsKilledAfterDrainTimeout() throws Exception {
+        final ForkedServer server = fork("stub.stop", "block");
+
+        assertFalse(BoundedStop.stop(server, "server", 500, null));
+
+        // The connection closes when the JVM is killed.
+        for (int i = 0; i < 1000 && !"EXITED".equals(server.getState()); ++i) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("EXITED", server.getState());
+        assertTrue(ForkedServerStub.read(server.getLog()).contains("Stub server stopping"));
+    }
+
+    private ForkedServer fork(String... properties) throws Exception {
+        final File directory = temporary.newFolder();
+
+        return ForkedServer.start(
+            ForkedServerStub.jvm(),
+            ForkedServerStub.arguments(directory, properties),
+            new File(directory, "server.log"),
+            true,
+            30000,
+            null);
+    }
+
+    /**
+     * @return A server whose {@code stop()} runs an action
+     */
+    private static EmbeddedDiffusion server(Runnable stop) {
+        return (EmbeddedDiffusion) Proxy.newProxyInstance(
+            BoundedStopTest.class.getClassLoader(),
+            new Class<?>[] { EmbeddedDiffusion.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("stop")) {
+                    stop.run();
+                }
+
+                return null;
+            });
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link ClassDataSharing}.
+ */
+public class ClassDataSharingTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testMajorVersion() {
+        assertEquals(8, ClassDataSharing.majorVersion("JAVA_VERSION=\"1.8.0_292\"\n"));
+        assertEquals(11, ClassDataSharing.majorVersion("IMPLEMENTOR=\"x\"\nJAVA_VERSION=\"11.0.2\"\n"));
+        assertEquals(17, ClassDataSharing.majorVersion("JAVA_VERSION=\"17\"\n"));
+        assertEquals(0, ClassDataSharing.majorVersion("IMPLEMENTOR=\"x\"\n"));
+    }
+
+    @Test
+    public void testOldJdkIsNotSupported() throws Exception {
+        final File directory = temporary.newFolder("cds");
+        final File javaHome = javaHome(directory, "1.8.0_292");
+
+        assertNull(ClassDataSharing.of(
+            new File(directory, "archives"), javaHome, Collections.<String>emptyList(), jar(directory, "a")));
+    }
+
+    @Test
+    public void testArchiveChangesWithClassPathContent() throws Exception {
+        final File directory = temporary.newFolder("cds");
+        final File archives = new File(directory, "archives");
+        final File javaHome = javaHome(directory, "17.0.1");
+        final List<File> classPath = jar(directory, "a");
+
+        final ClassDataSharing first =
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath);
+
+        assertFalse(first.exists());
+        assertTrue(first.jvmOption().startsWith("-XX:ArchiveClassesAtExit="));
+
+        assertEquals(first.getArchive(),
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath).getArchive());
+
+        assertNotEquals(first.getArchive(),
+            ClassDataSharing.of(archives, javaHome, singletonList("-Xmx1g"), classPath).getArchive());
+
+        Files.write(classPath.get(0).toPath(), "changed".getBytes(UTF_8));
+        assertTrue(classPath.get(0).setLastModified(classPath.get(0).lastModified() + 2000));
+
+        assertNotEquals(first.getArchive(),
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath).getArchive());
+    }
+
+    @Test
+    public void testArchiveIsOnlyKeptIfJvmExitedCleanly() throws Exception {
+        final File directory = temporary.newFolder("cds");
+        final File archives = new File(directory, "archives");
+        final File javaHome = javaHome(directory, "17.0.1");
+        final List<File> classPath = jar(directory, "a");
+
+        final ClassDataSharing killed =
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath);
+        Files.write(temporary(killed).toPath(), "partial".getBytes(UTF_8));
+
+        assertFalse(killed.complete(false));
+        assertFalse(killed.getArchive().exists());
+        assertFalse(temporary(killed).exists());
+
+        final ClassDataSharing exited =
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath);
+        Files.write(temporary(exited).toPath(), "archive".getBytes(UTF_8));
+
+        assertTrue(exited.complete(true));
+        assertTrue(exited.getArchive().exists());
+
+        final ClassDataSharing later =
+            ClassDataSharing.of(archives, javaHome, Collections.<String>emptyList(), classPath);
+
+        assertTrue(later.exists());
+        assertTrue(later.jvmOption().startsWith("-XX:SharedArchiveFile="));
+    }
+
+    private static File temporary(ClassDataSharing sharing) {
+        return new File(sharing.jvmOption().substring("-XX:ArchiveClassesAtExit=".length()));
+    }
+
+    private static File javaHome(File directory, String version) throws Exception {
+        final File javaHome = new File(directory, "jdk-" + version);
+        Files.createDirectories(javaHome.toPath());
+        Files.write(new File(javaHome, "release").toPath(),
+            ("JAVA_VERSION=\"" + version + "\"\n").getBytes(UTF_8));
+        return javaHome;
+    }
+
+    private static List<File> jar(File directory, String name) throws Exception {
+        final File jar = new File(directory, name + ".jar");
+        Files.write(jar.toPath(), name.getBytes(UTF_8));
+        return singletonList(jar);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link DiffusionHomeOverlay}.
+ */
+public class DiffusionHomeOverlayTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testWritableDirectoriesAreCopied() throws Exception {
+        final Path directory = temporary.newFolder("overlay").toPath();
+        final Path home = home(directory);
+        final Path overlay = directory.resolve("overlay");
+
+        DiffusionHomeOverlay.create(home, overlay, Collections.singleton("etc"));
+
+        assertTrue(Files.isSameFile(home.resolve("lib/diffusion.jar"), overlay.resolve("lib/diffusion.jar")));
+        assertFalse(Files.isSameFile(home.resolve("etc/Server.xml"), overlay.resolve("etc/Server.xml")));
+
+        write(overlay.resolve("etc/Server.xml"), "changed");
+
+        assertEquals("server", read(home.resolve("etc/Server.xml")));
+        assertTrue(Files.isDirectory(overlay.resolve("logs")));
+    }
+
+    @Test
+    public void testFilesAreCopiedIfLinksFail() throws Exception {
+        final Path directory = temporary.newFolder("overlay").toPath();
+        final Path home = home(directory);
+        final Path overlay = directory.resolve("overlay");
+        final AtomicInteger attempts = new AtomicInteger();
+
+        DiffusionHomeOverlay.create(home, overlay, Collections.<String>emptySet(), (link, existing) -> {
+            attempts.incrementAndGet();
+            throw new IOException("Links not supported");
+        });
+
+        assertEquals(1, attempts.get());
+        assertFalse(Files.isSameFile(home.resolve("lib/diffusion.jar"), overlay.resolve("lib/diffusion.jar")));
+        assertEquals("jar", read(overlay.resolve("lib/diffusion.jar")));
+        assertEquals("server", read(overlay.resolve("etc/Server.xml")));
+    }
+
+    @Test
+    public void testDeleteLeavesInstallation() throws Exception {
+        final Path directory = temporary.newFolder("overlay").toPath();
+        final Path home = home(directory);
+        final Path overlay = directory.resolve("overlay");
+
+        DiffusionHomeOverlay.create(home, overlay, Collections.singleton("etc"));
+        write(overlay.resolve("lib/diffusion.jar.tmp"), "leftover");
+
+        DiffusionHomeOverlay.create(home, overlay, Collections.singleton("etc"));
+        assertFalse(Files.exists(overlay.resolve("lib/diffusion.jar.tmp")));
+
+        DiffusionHomeOverlay.delete(overlay);
+
+        assertFalse(Files.exists(overlay));
+        assertEquals("jar", read(home.resolve("lib/diffusion.jar")));
+        assertEquals("server", read(home.resolve("etc/Server.xml")));
+
+        DiffusionHomeOverlay.delete(overlay);
+    }
+
+    private static Path home(Path directory) throws IOException {
+        final Path home = directory.resolve("home");
+
+        write(home.resolve("lib/diffusion.jar"), "jar");
+        write(home.resolve("etc/Server.xml"), "server");
+        Files.createDirectories(home.resolve("logs"));
+
+        return home;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), UTF_8);
+    }
+}
@@ -26,6 +26,8 @@ import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 import org.apache.maven.project.MavenProject;
 import org.mockito.Mock;
 
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -148,16 +150,57 @@ public class DiffusionMojoTest extends AbstractMojoTestCase {
         final HashMap pluginContext = new HashMap();
         mojo.setPluginContext(pluginContext);
         final DiffusionStartMojo startmojo = getStartMojo(buildDirectory);
+        startmojo.setPluginContext(pluginContext);
         MavenProject project = new DiffusionProjectStub(buildDirectory, simplePom);
         setVariableValueToObject(startmojo, "project", project);
         startmojo.execute();
+        final EmbeddedDiffusion server = startmojo.getServer();
         // Now stop it
         setVariableValueToObject(mojo, "execution",
                 new DiffusionExecutionStub(null, "stop", "shutdown"));
 
-        pluginContext.put("startedServerInstance", startmojo.getServer());
         setVariableValueToObject(mojo, "project", project);
         mojo.execute();
-        assertTrue(mojo.getServer().isStopped());
+        assertTrue(server.isStopped());
+        assertNull(mojo.getServer());
+        assertNull(mojo.getServerClassLoader());
+    }
+
+    public void testStopSelectedServer() throws Exception {
+
+        final HashMap pluginContext = new HashMap();
+        final MavenProject project = new DiffusionProjectStub(buildDirectory, simplePom);
+
+        final DiffusionStartMojo first = getStartMojo(buildDirectory);
+        first.setPluginContext(pluginContext);
+        setVariableValueToObject(first, "project", project);
+        setVariableValueToObject(first, "serverId", "first");
+        first.execute();
+        final EmbeddedDiffusion firstServer = first.getServer();
+
+        final DiffusionStartMojo second = getStartMojo(buildDirectory);
+        second.setPluginContext(pluginContext);
+        setVariableValueToObject(second, "project", project);
+        setVariableValueToObject(second, "serverId", "second");
+        setVariableValueToObject(second, "port", 8081);
+        setVariableValueToObject(second, "sslPort", 8444);
+        second.execute();
+        final EmbeddedDiffusion secondServer = second.getServer();
+
+        final DiffusionStopMojo mojo = (DiffusionStopMojo) lookupMojo("stop", simplePom);
+        mojo.setPluginContext(pluginContext);
+        setVariableValueToObject(mojo, "execution",
+                new DiffusionExecutionStub(null, "stop", "shutdown"));
+        setVariableValueToObject(mojo, "project", project);
+        setVariableValueToObject(mojo, "serverIds", new String[] {"second"});
+        mojo.execute();
+
+        assertTrue(secondServer.isStopped());
+        assertTrue(firstServer.isStarted());
+        assertSame(firstServer, mojo.getServer());
+
+        // Clean up
+        mojo.stopDiffusion();
+        assertTrue(firstServer.isStopped());
     }
 }
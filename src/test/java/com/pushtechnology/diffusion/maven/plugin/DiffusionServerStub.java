@@ -0,0 +1,93 @@
+package com.pushtechnology.diffusion.maven.plugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * An embedded server that runs actions instead of starting and stopping
+ * Diffusion.
+ */
+public class DiffusionServerStub implements InvocationHandler {
+
+    private final Runnable start;
+    private final Runnable stop;
+    private final AtomicInteger stops = new AtomicInteger();
+    private volatile boolean started;
+    private volatile boolean stopped;
+
+    public DiffusionServerStub() {
+        this(() -> { }, () -> { });
+    }
+
+    /**
+     * @param start Run by {@code start()}
+     * @param stop Run by {@code stop()}
+     */
+    public DiffusionServerStub(Runnable start, Runnable stop) {
+        this.start = start;
+        this.stop = stop;
+    }
+
+    public EmbeddedDiffusion server() {
+        return (EmbeddedDiffusion) Proxy.newProxyInstance(
+            EmbeddedDiffusion.class.getClassLoader(),
+            new Class<?>[] { EmbeddedDiffusion.class },
+            this);
+    }
+
+    /**
+     * @return The number of times the server has been asked to stop
+     */
+    public int getStopCount() {
+        return stops.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "start":
+            start.run();
+            started = true;
+            return null;
+        case "stop":
+            stops.incrementAndGet();
+            stop.run();
+            started = false;
+            stopped = true;
+            return null;
+        case "isStarted":
+            return started;
+        case "isStopped":
+            return stopped;
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "equals":
+            return proxy == args[0];
+        case "toString":
+            return "server stub";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return A class loader for a stub server, with nothing on its class
+     *         path
+     */
+    public static BlockingClassLoader classLoader() {
+        return new BlockingClassLoader(
+            new URLClassLoader(new URL[0], DiffusionServerStub.class.getClassLoader()),
+            Collections.<URL>emptyList(),
+            Collections.<String>emptySet(),
+            Collections.<String>emptySet(),
+            Collections.<String>emptySet(),
+            false);
+    }
+}
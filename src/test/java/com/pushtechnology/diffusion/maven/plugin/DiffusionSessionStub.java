@@ -0,0 +1,26 @@
+package com.pushtechnology.diffusion.maven.plugin;
+
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * A Maven session that can be ended, for values kept for the session.
+ */
+public class DiffusionSessionStub extends MavenSession {
+
+    public DiffusionSessionStub() {
+        super(null,
+              null,
+              new DefaultMavenExecutionRequest().setExecutionListener(new AbstractExecutionListener()),
+              new DefaultMavenExecutionResult());
+    }
+
+    /**
+     * Notify the listeners that the session has ended.
+     */
+    public void end() {
+        getRequest().getExecutionListener().sessionEnded(null);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link DistributionCache}.
+ */
+public class DistributionCacheTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testArchiveIsUnpackedOnce() throws Exception {
+        final File directory = temporary.newFolder("distributions");
+        final File archive = archive(directory, "Diffusion/lib/diffusion.jar", "jar");
+
+        final File home = DistributionCache.unpack(archive, new File(directory, "cache"));
+
+        assertEquals("Diffusion", home.getName());
+        assertEquals("jar", read(new File(home, "lib/diffusion.jar")));
+
+        final File marker = new File(home, "marker");
+        assertTrue(marker.createNewFile());
+
+        assertEquals(home, DistributionCache.unpack(archive, new File(directory, "cache")));
+        assertTrue(marker.exists());
+    }
+
+    @Test
+    public void testChecksumMismatchIsRejected() throws Exception {
+        final File directory = temporary.newFolder("distributions");
+        final File archive = archive(directory, "lib/diffusion.jar", "jar");
+
+        Files.write(new File(archive.getPath() + ".sha1").toPath(), "0000".getBytes(UTF_8));
+
+        try {
+            DistributionCache.unpack(archive, new File(directory, "cache"));
+            fail("Expected IOException");
+        }
+        catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static File archive(File directory, String entry, String content) throws IOException {
+        final File archive = new File(directory, "diffusion.zip");
+
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write(content.getBytes(UTF_8));
+            out.closeEntry();
+        }
+
+        return archive;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+}
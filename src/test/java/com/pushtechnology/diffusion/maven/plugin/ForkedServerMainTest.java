@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the protocol between {@link ForkedServerMain} and the
+ * plugin, using a {@link ForkedServerStub} in a child JVM.
+ */
+public class ForkedServerMainTest {
+
+    private static final int TIMEOUT = 30000;
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testLifecycleIsReported() throws Exception {
+        try (Child child = new Child("stub.connectors", "Client Connector,SSL Connector")) {
+            assertEquals("CONNECTOR 8080 Client Connector", child.in.readLine());
+            assertEquals("CONNECTOR 8443 SSL Connector", child.in.readLine());
+            assertEquals("STATE STARTING", child.in.readLine());
+            assertEquals("STATE STARTED", child.in.readLine());
+            assertEquals("RUNNING", child.in.readLine());
+
+            // Other commands are ignored.
+            child.out.println("PING");
+            child.out.println("STOP");
+
+            assertEquals("STATE STOPPED", child.in.readLine());
+            assertEquals("STOPPED", child.in.readLine());
+            assertNull(child.in.readLine());
+            assertEquals(0, child.exitValue());
+        }
+    }
+
+    @Test
+    public void testFailedStartIsReported() throws Exception {
+        try (Child child = new Child("stub.start", "fail")) {
+            assertEquals("STATE STARTING", child.in.readLine());
+
+            final String failed = child.in.readLine();
+            assertTrue(failed, failed.startsWith("FAILED ") && failed.contains("No licence"));
+
+            assertNull(child.in.readLine());
+            assertEquals(1, child.exitValue());
+        }
+    }
+
+    @Test
+    public void testServerStopsWhenConnectionIsLost() throws Exception {
+        try (Child child = new Child()) {
+            assertEquals("STATE STARTING", child.in.readLine());
+            assertEquals("STATE STARTED", child.in.readLine());
+            assertEquals("RUNNING", child.in.readLine());
+
+            child.control.close();
+
+            assertEquals(0, child.exitValue());
+            assertTrue(ForkedServerStub.read(child.log).contains("Stub server stopping"));
+        }
+    }
+
+    /**
+     * A child JVM running {@link ForkedServerMain}, connected to the test.
+     */
+    private final class Child implements AutoCloseable {
+        private final File log;
+        private final Process process;
+        private final Socket control;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Child(String... properties) throws Exception {
+            final File directory = temporary.newFolder();
+            log = new File(directory, "server.log");
+
+            try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                final List<String> command = ForkedServerStub.jvm();
+                command.add(ForkedServerMain.class.getName());
+                command.add(Integer.toString(listener.getLocalPort()));
+                command.addAll(ForkedServerStub.arguments(directory, properties));
+
+                process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log)
+                    .start();
+
+                try {
+                    listener.setSoTimeout(TIMEOUT);
+                    control = listener.accept();
+                }
+                catch (IOException e) {
+                    process.destroyForcibly();
+                    throw e;
+                }
+            }
+
+            control.setSoTimeout(TIMEOUT);
+            in = new BufferedReader(new InputStreamReader(control.getInputStream(), UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(control.getOutputStream(), UTF_8), true);
+        }
+
+        int exitValue() throws InterruptedException {
+            assertTrue("Child still running", process.waitFor(TIMEOUT, TimeUnit.MILLISECONDS));
+            return process.exitValue();
+        }
+
+        @Override
+        public void close() throws Exception {
+            control.close();
+            process.destroyForcibly().waitFor();
+        }
+    }
+}
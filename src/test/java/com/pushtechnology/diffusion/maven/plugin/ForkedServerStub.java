@@ -0,0 +1,175 @@
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import com.pushtechnology.diffusion.api.config.ConnectorConfig;
+import com.pushtechnology.diffusion.api.config.ManagementConfig;
+import com.pushtechnology.diffusion.api.config.ServerConfig;
+import com.pushtechnology.diffusion.api.server.EmbeddedDiffusion;
+
+/**
+ * A server for {@link ForkedServerMain} to run in a child JVM, configured
+ * by its properties.
+ *
+ * <ul>
+ * <li>{@code stub.connectors} lists the connectors it is configured with,
+ * separated by commas.</li>
+ * <li>{@code stub.start=fail} makes {@code start()} fail.</li>
+ * <li>{@code stub.stop=block} makes {@code stop()} block forever.</li>
+ * </ul>
+ */
+public class ForkedServerStub implements InvocationHandler {
+
+    private final Properties properties;
+    private final List<EmbeddedDiffusion.LifecycleListener> listeners = new ArrayList<>();
+    private EmbeddedDiffusion server;
+
+    private ForkedServerStub(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Called by {@link ForkedServerMain} in the child JVM.
+     */
+    public static EmbeddedDiffusion newServer(Properties properties) {
+        final ForkedServerStub stub = new ForkedServerStub(properties);
+
+        stub.server = (EmbeddedDiffusion) Proxy.newProxyInstance(
+            ForkedServerStub.class.getClassLoader(),
+            new Class<?>[] { EmbeddedDiffusion.class },
+            stub);
+
+        return stub.server;
+    }
+
+    /**
+     * @return The java command that runs {@link ForkedServerMain} with this
+     *         JVM's class path
+     */
+    public static List<String> jvm() {
+        return new ArrayList<>(Arrays.asList(
+            new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp",
+            System.getProperty("java.class.path")));
+    }
+
+    /**
+     * @return The arguments of {@link ForkedServerMain} after the control
+     *         port, for a stub server with the given properties
+     */
+    public static List<String> arguments(File directory, String... properties)
+        throws IOException {
+
+        final Properties values = new Properties();
+
+        for (int i = 0; i < properties.length; i += 2) {
+            values.setProperty(properties[i], properties[i + 1]);
+        }
+
+        final File file = new File(directory, "server.properties");
+
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            values.store(out, null);
+        }
+
+        return new ArrayList<>(Arrays.asList(
+            file.getPath(), "8080", "8443", "32768", ForkedServerStub.class.getName()));
+    }
+
+    /**
+     * @return The output of the child JVM
+     */
+    public static String read(File log) throws IOException {
+        return new String(Files.readAllBytes(log.toPath()), UTF_8);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+        switch (method.getName()) {
+        case "getConfig":
+            return proxy(ServerConfig.class);
+        case "addLifecycleListener":
+            listeners.add((EmbeddedDiffusion.LifecycleListener) args[0]);
+            return null;
+        case "start":
+            changeState(EmbeddedDiffusion.State.STARTING);
+
+            if ("fail".equals(properties.getProperty("stub.start"))) {
+                throw new IllegalStateException("No licence");
+            }
+
+            changeState(EmbeddedDiffusion.State.STARTED);
+            return null;
+        case "stop":
+            System.out.println("Stub server stopping");
+
+            if ("block".equals(properties.getProperty("stub.stop"))) {
+                for (;;) {
+                    try {
+                        Thread.sleep(60000);
+                    }
+                    catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            }
+
+            changeState(EmbeddedDiffusion.State.STOPPED);
+            return null;
+        case "getConnector":
+            return connectors().contains(args[0]) ? proxy(ConnectorConfig.class) : null;
+        case "getManagement":
+            return proxy(ManagementConfig.class);
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "equals":
+            return proxy == args[0];
+        case "toString":
+            return "forked server stub";
+        default:
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private void changeState(EmbeddedDiffusion.State state) {
+        for (EmbeddedDiffusion.LifecycleListener listener : listeners) {
+            listener.onStateChanged(state);
+        }
+    }
+
+    private List<String> connectors() {
+        return Arrays.asList(properties.getProperty("stub.connectors", "").split(","));
+    }
+
+    private Object proxy(Class<?> type) {
+        return Proxy.newProxyInstance(ForkedServerStub.class.getClassLoader(), new Class<?>[] { type }, this);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+
+        if (type == int.class) {
+            return 0;
+        }
+
+        if (type == long.class) {
+            return 0L;
+        }
+
+        return null;
+    }
+}
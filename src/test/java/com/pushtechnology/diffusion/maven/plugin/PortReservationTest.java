@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link PortReservation}.
+ */
+public class PortReservationTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testReservationsFromRangeAreDistinct() throws Exception {
+        final File directory = temporary.newFolder("ports");
+        final int low = freePort();
+
+        try (PortReservation first = PortReservation.fromRange(directory, low, low + 3, 2);
+             PortReservation second = PortReservation.fromRange(directory, low, low + 3, 2)) {
+
+            final int[] ports = {
+                first.getPort(0), first.getPort(1), second.getPort(0), second.getPort(1)
+            };
+
+            for (int i = 0; i < ports.length; ++i) {
+                assertTrue(ports[i] >= low && ports[i] <= low + 3);
+
+                for (int j = i + 1; j < ports.length; ++j) {
+                    assertNotEquals(ports[i], ports[j]);
+                }
+            }
+
+            try {
+                PortReservation.fromRange(directory, low, low + 3, 1);
+                fail("Expected IOException");
+            }
+            catch (IOException e) {
+                // Range exhausted.
+            }
+        }
+
+        try (PortReservation again = PortReservation.fromRange(directory, low, low + 3, 4)) {
+            assertEquals(low + 3, Math.max(Math.max(again.getPort(0), again.getPort(1)),
+                                           Math.max(again.getPort(2), again.getPort(3))));
+        }
+    }
+
+    @Test
+    public void testBoundPortsAreSkipped() throws Exception {
+        final File directory = temporary.newFolder("ports");
+
+        try (ServerSocket bound = new ServerSocket(0)) {
+            final int port = bound.getLocalPort();
+
+            try {
+                PortReservation.fromRange(directory, port, port, 1);
+                fail("Expected IOException");
+            }
+            catch (IOException e) {
+                // The only port in the range is in use.
+            }
+        }
+    }
+
+    @Test
+    public void testEphemeralPortsAreReservedUntilReleased() throws Exception {
+        final File directory = temporary.newFolder("ports");
+        final int[] ports;
+
+        try (PortReservation reservation = PortReservation.ephemeral(directory, 2)) {
+            ports = new int[] { reservation.getPort(0), reservation.getPort(1) };
+
+            assertNotEquals(ports[0], ports[1]);
+
+            for (int port : ports) {
+                // Free for the server to bind, but not for other builds to
+                // choose.
+                new ServerSocket(port).close();
+
+                try {
+                    PortReservation.fromRange(directory, port, port, 1);
+                    fail("Expected IOException");
+                }
+                catch (IOException e) {
+                    // Reserved.
+                }
+            }
+        }
+
+        for (int port : ports) {
+            try (PortReservation again = PortReservation.fromRange(directory, port, port, 1)) {
+                assertEquals(port, again.getPort(0));
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ReadinessProbe}.
+ */
+public class ReadinessProbeTest {
+
+    @Test
+    public void testNoneChecksNothing() throws Exception {
+        final ReadinessProbe probe = new ReadinessProbe(ReadinessProbe.Mode.NONE);
+        probe.addConnector("Client Connector", freePort(), false);
+
+        final long now = System.nanoTime();
+
+        assertTrue(probe.await(now, now).isEmpty());
+    }
+
+    @Test
+    public void testTcpConnectorAnswers() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final ReadinessProbe probe = new ReadinessProbe(ReadinessProbe.Mode.TCP);
+            probe.addConnector("Client Connector", server.getLocalPort(), false);
+            probe.addConnector("SSL Connector", server.getLocalPort(), true);
+
+            final long now = System.nanoTime();
+            final Map<String, Long> ready = probe.await(now, now + TimeUnit.SECONDS.toNanos(5));
+
+            assertEquals(2, ready.size());
+            assertTrue(ready.containsKey("Client Connector"));
+            assertTrue(ready.containsKey("SSL Connector"));
+        }
+    }
+
+    @Test
+    public void testWebSocketConnectorAnswers() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final Thread responder = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    socket.getOutputStream().write(
+                        "HTTP/1.1 101 Switching Protocols\r\n\r\n".getBytes(US_ASCII));
+                }
+                catch (IOException e) {
+                    // The test fails on the deadline.
+                }
+            });
+            responder.start();
+
+            final ReadinessProbe probe = new ReadinessProbe(ReadinessProbe.Mode.WEBSOCKET);
+            probe.addConnector("HTTP Connector", server.getLocalPort(), false);
+
+            final long now = System.nanoTime();
+
+            assertEquals(1, probe.await(now, now + TimeUnit.SECONDS.toNanos(5)).size());
+            responder.join();
+        }
+    }
+
+    @Test
+    public void testUnansweredConnectorFailsAtDeadline() throws Exception {
+        final ReadinessProbe probe = new ReadinessProbe(ReadinessProbe.Mode.TCP);
+        probe.addConnector("Client Connector", freePort(), false);
+
+        final long now = System.nanoTime();
+
+        try {
+            probe.await(now, now + TimeUnit.MILLISECONDS.toNanos(200));
+            fail("Expected IOException");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("Client Connector"));
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link ServerClassLoaderCache}.
+ */
+public class ServerClassLoaderCacheTest {
+
+    private static final Set<String> SHARED = singleton("com.pushtechnology.diffusion.api.*");
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testMatchingClassPathReusesLoader() throws Exception {
+        final URL[] classPath = classPath();
+        final ServerClassLoaderCache cache = new ServerClassLoaderCache();
+        final ClosingClassLoader loader = new ClosingClassLoader(classPath);
+
+        assertTrue(cache.release(ServerClassLoaderCache.key(classPath, SHARED), loader, true));
+
+        final String key = ServerClassLoaderCache.key(classPath(), SHARED);
+        assertSame(loader, cache.acquire(key));
+
+        // Handed to one server at a time.
+        assertNull(cache.acquire(key));
+        assertEquals(0, loader.closeCount);
+    }
+
+    @Test
+    public void testChangedClassPathDoesNotReuseLoader() throws Exception {
+        final URL[] classPath = classPath();
+        final String key = ServerClassLoaderCache.key(classPath, SHARED);
+        final ServerClassLoaderCache cache = new ServerClassLoaderCache();
+
+        assertTrue(cache.release(key, new ClosingClassLoader(classPath), true));
+
+        assertNotEquals(key, ServerClassLoaderCache.key(classPath, singleton("javax.*")));
+
+        final File jar = new File(temporary.getRoot(), "server.jar");
+        assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+
+        final String rebuilt = ServerClassLoaderCache.key(classPath, SHARED);
+        assertNotEquals(key, rebuilt);
+        assertNull(cache.acquire(rebuilt));
+    }
+
+    @Test
+    public void testForcedStopLoaderIsNotReused() throws Exception {
+        final URL[] classPath = classPath();
+        final String key = ServerClassLoaderCache.key(classPath, SHARED);
+        final ServerClassLoaderCache cache = new ServerClassLoaderCache();
+        final ClosingClassLoader loader = new ClosingClassLoader(classPath);
+
+        assertFalse(cache.release(key, loader, false));
+
+        assertEquals(1, loader.closeCount);
+        assertNull(cache.acquire(key));
+    }
+
+    @Test
+    public void testSecondIdleLoaderIsClosed() throws Exception {
+        final URL[] classPath = classPath();
+        final String key = ServerClassLoaderCache.key(classPath, SHARED);
+        final ServerClassLoaderCache cache = new ServerClassLoaderCache();
+        final ClosingClassLoader first = new ClosingClassLoader(classPath);
+        final ClosingClassLoader second = new ClosingClassLoader(classPath);
+
+        assertTrue(cache.release(key, first, true));
+        assertFalse(cache.release(key, second, true));
+
+        assertEquals(1, second.closeCount);
+        assertSame(first, cache.acquire(key));
+    }
+
+    @Test
+    public void testSessionEndClosesLoaders() throws Exception {
+        final URL[] classPath = classPath();
+        final String key = ServerClassLoaderCache.key(classPath, SHARED);
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final ServerClassLoaderCache cache = ServerClassLoaderCache.of(session);
+        final ClosingClassLoader loader = new ClosingClassLoader(classPath);
+
+        assertSame(cache, ServerClassLoaderCache.of(session));
+        assertTrue(cache.release(key, loader, true));
+
+        session.end();
+
+        assertEquals(1, loader.closeCount);
+        assertNull(cache.acquire(key));
+
+        final ClosingClassLoader late = new ClosingClassLoader(classPath);
+        assertFalse(cache.release(key, late, true));
+        assertEquals(1, late.closeCount);
+
+        final ServerClassLoaderCache next = ServerClassLoaderCache.of(session);
+        assertNotSame(cache, next);
+        assertNull(next.acquire(key));
+
+        session.end();
+    }
+
+    private URL[] classPath() throws IOException {
+        File jar = new File(temporary.getRoot(), "server.jar");
+
+        if (!jar.exists()) {
+            jar = temporary.newFile("server.jar");
+        }
+
+        return new URL[] { jar.toURI().toURL() };
+    }
+
+    /**
+     * Counts the times it is closed.
+     */
+    private static final class ClosingClassLoader extends BlockingClassLoader {
+        private int closeCount;
+
+        ClosingClassLoader(URL[] classPath) {
+            super(new URLClassLoader(new URL[0], ServerClassLoaderCacheTest.class.getClassLoader()),
+                  asList(classPath),
+                  Collections.<String>emptySet(),
+                  Collections.<String>emptySet(),
+                  Collections.<String>emptySet(),
+                  false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ++closeCount;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ServerStarter}.
+ */
+public class ServerStarterTest {
+
+    @Test
+    public void testKeyCoversConfiguration() throws Exception {
+        final String key = starter(mojo(), "a").key(false);
+
+        assertEquals(key, starter(mojo(), "b").key(false));
+
+        final DiffusionStartMojo deployments = mojo();
+        deployments.waitForDeployments = false;
+        assertNotEquals(key, starter(deployments, "a").key(false));
+
+        final DiffusionStartMojo isolated = mojo();
+        isolated.isolateDiffusionHome = true;
+        assertNotEquals(key, starter(isolated, "a").key(false));
+
+        final DiffusionStartMojo global = mojo();
+        global.globalSystemProperties = true;
+        assertNotEquals(key, starter(global, "a").key(false));
+
+        final DiffusionStartMojo range = mojo();
+        range.portRange = "20000-20999";
+        assertNotEquals(key, starter(range, "a").key(false));
+
+        final DiffusionStartMojo timeout = mojo();
+        timeout.serverStartTimeout = 1000;
+        assertNotEquals(key, starter(timeout, "a").key(false));
+
+        final DiffusionStartMojo probe = mojo();
+        probe.readinessProbe = "websocket";
+        assertNotEquals(key, starter(probe, "a").key(false));
+
+        final DiffusionStartMojo slow = mojo();
+        slow.slowStartThreshold = 1000;
+        assertNotEquals(key, starter(slow, "a").key(false));
+    }
+
+    @Test
+    public void testConfigurationIsCopied() throws Exception {
+        final DiffusionStartMojo mojo = mojo();
+        final ServerStarter starter = starter(mojo, "a");
+        final String key = starter.key(true);
+
+        mojo.port = 9090;
+        mojo.maxMessageSize = 1;
+        mojo.isolateDiffusionHome = true;
+
+        assertEquals(key, starter.key(true));
+    }
+
+    private static ServerStarter starter(DiffusionStartMojo mojo, String directory) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("diffusion.home", "/opt/diffusion");
+
+        return new ServerStarter(mojo,
+            Collections.singletonList(new URL("file:/opt/diffusion/lib/diffusion.jar")),
+            properties,
+            new File(directory));
+    }
+
+    private static DiffusionStartMojo mojo() {
+        final DiffusionStartMojo mojo = new DiffusionStartMojo();
+        mojo.port = 8080;
+        mojo.sslPort = 8443;
+        mojo.maxMessageSize = 32768;
+        return mojo;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.pushtechnology.diffusion.maven.plugin.ServerRegistry.RegisteredServer;
+import com.pushtechnology.diffusion.maven.plugin.SharedServers.SharedServer;
+
+/**
+ * Unit tests for {@link SharedServers}.
+ */
+public class SharedServersTest {
+
+    @Test
+    public void testModulesShareOneServer() {
+        final SharedServers servers = new SharedServers();
+        final DiffusionServerStub stub = new DiffusionServerStub();
+        final SharedServer server = shared(stub);
+
+        assertNull(servers.attach("a"));
+
+        servers.register("a", server);
+
+        assertSame(server, servers.attach("a"));
+        assertNull(servers.attach("b"));
+
+        assertEquals(1, servers.detach("a"));
+        assertEquals(0, servers.detach("a"));
+        assertEquals(-1, servers.detach("b"));
+
+        // Left running for later modules.
+        assertEquals(0, stub.getStopCount());
+        assertSame(server, servers.attach("a"));
+        assertEquals(0, servers.detach("a"));
+    }
+
+    @Test
+    public void testLocksArePerConfiguration() {
+        final SharedServers servers = new SharedServers();
+
+        assertSame(servers.lock("a"), servers.lock("a"));
+        assertNotSame(servers.lock("a"), servers.lock("b"));
+    }
+
+    @Test
+    public void testServersStopWhenSessionEnds() {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final SharedServers servers = SharedServers.of(session);
+        final DiffusionServerStub unused = new DiffusionServerStub();
+        final DiffusionServerStub used = new DiffusionServerStub();
+
+        assertSame(servers, SharedServers.of(session));
+
+        servers.register("unused", shared(unused));
+        servers.register("used", shared(used));
+        assertEquals(0, servers.detach("unused"));
+
+        session.end();
+
+        assertEquals(1, unused.getStopCount());
+        assertEquals(1, used.getStopCount());
+        assertEquals(-1, servers.detach("used"));
+
+        try {
+            servers.register("late", shared(new DiffusionServerStub()));
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    private static SharedServer shared(DiffusionServerStub stub) {
+        return new SharedServer(new RegisteredServer(
+            stub.server(), DiffusionServerStub.classLoader(), 8080, 8443, null, null));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.pushtechnology.diffusion.maven.plugin.StandbyPool.Standby;
+
+/**
+ * Unit tests for {@link StandbyPool}.
+ */
+public class StandbyPoolTest {
+
+    @Test
+    public void testStandbyIsHandedOutAndReplaced() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final Servers servers = new Servers();
+        final StandbyPool pool = StandbyPool.start(session, "a", 1, servers);
+
+        assertTrue(pool.matches("a"));
+
+        final Standby standby = pool.take();
+
+        assertNotNull(standby);
+        assertSame(servers.standbys.get(0), standby);
+
+        for (int i = 0; i < 1000 && servers.started.get() < 2; ++i) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, servers.started.get());
+
+        session.end();
+
+        // The replacement is stopped with the pool, the server taken is not.
+        assertEquals(0, servers.stubs.get(0).getStopCount());
+        assertEquals(1, servers.stubs.get(1).getStopCount());
+        assertNull(pool.take());
+    }
+
+    @Test
+    public void testDifferentConfigurationDoesNotUsePool() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final Servers servers = new Servers();
+        final Servers other = new Servers();
+        final StandbyPool pool = StandbyPool.start(session, "a", 1, servers);
+
+        assertSame(pool, StandbyPool.start(session, "b", 1, other));
+        assertFalse(pool.matches("b"));
+
+        session.end();
+
+        assertEquals(1, servers.started.get());
+        assertEquals(0, other.started.get());
+    }
+
+    @Test
+    public void testFailedStartIsNotHandedOut() throws Exception {
+        final DiffusionSessionStub session = new DiffusionSessionStub();
+        final StandbyPool pool = StandbyPool.start(session, "a", 1, () -> {
+            throw new IllegalStateException("No licence");
+        });
+
+        assertNull(pool.take());
+
+        session.end();
+    }
+
+    @Test
+    public void testCloseStopsServersThatFinishStartingLater() throws Exception {
+        final CountDownLatch starting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DiffusionServerStub stub = new DiffusionServerStub();
+        final StandbyPool pool = StandbyPool.start(new DiffusionSessionStub(), "a", 1, () -> {
+            starting.countDown();
+            awaitUninterruptibly(release);
+            return new Standby(stub.server(), DiffusionServerStub.classLoader(), 8080, 8443);
+        });
+
+        assertTrue(starting.await(10, SECONDS));
+
+        pool.close(100, MILLISECONDS);
+
+        assertEquals(0, stub.getStopCount());
+
+        release.countDown();
+
+        for (int i = 0; i < 1000 && stub.getStopCount() == 0; ++i) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, stub.getStopCount());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (!latch.await(10, SECONDS)) {
+                    fail("Not released");
+                }
+
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts stub servers.
+     */
+    private static final class Servers implements StandbyPool.Factory {
+        private final AtomicInteger started = new AtomicInteger();
+        private final List<DiffusionServerStub> stubs = new ArrayList<>();
+        private final List<Standby> standbys = new ArrayList<>();
+
+        @Override
+        public synchronized Standby start() {
+            final DiffusionServerStub stub = new DiffusionServerStub();
+            final Standby standby =
+                new Standby(stub.server(), DiffusionServerStub.classLoader(), 8080, 8443);
+
+            stubs.add(stub);
+            standbys.add(standby);
+            started.incrementAndGet();
+
+            return standby;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link StartWatchdog}.
+ */
+public class StartWatchdogTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testNoDumpsBeforeSoftThreshold() throws Exception {
+        try (StartWatchdog watchdog = StartWatchdog.start(new ThreadGroup("server"), 60000, 10, null)) {
+            Thread.sleep(100);
+            assertEquals(0, watchdog.getDumpCount());
+        }
+    }
+
+    @Test
+    public void testDumpsRecordBlockedServerThreads() throws Exception {
+        final Object lock = new Object();
+        final File report = new File(temporary.newFolder("watchdog"), "diffusion/dumps.json");
+        final ThreadGroup group = new ThreadGroup("server");
+        final CountDownLatch stop = new CountDownLatch(1);
+
+        // A thread started after the watchdog, but not by the server.
+        final Thread other = new Thread(() -> {
+            try {
+                stop.await();
+            }
+            catch (InterruptedException e) {
+                // Exit.
+            }
+        }, "other-build-thread");
+
+        try (StartWatchdog watchdog = StartWatchdog.start(group, 10, 10, null)) {
+            final Thread blocked;
+            other.start();
+
+            synchronized (lock) {
+                blocked = new Thread(group, () -> {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }, "blocked-server-thread");
+                blocked.start();
+
+                while (blocked.getState() != Thread.State.BLOCKED || watchdog.getDumpCount() < 2) {
+                    Thread.sleep(10);
+                }
+
+                watchdog.dump();
+            }
+
+            blocked.join();
+            stop.countDown();
+            other.join();
+            watchdog.writeReport(report, "default");
+
+            assertTrue(watchdog.getDumpCount() <= StartWatchdog.MAXIMUM_DUMPS);
+        }
+
+        final String json = new String(Files.readAllBytes(report.toPath()), UTF_8);
+
+        assertTrue(json.contains("\"serverId\": \"default\""));
+        assertTrue(json.contains("\"name\": \"blocked-server-thread\""));
+        assertTrue(json.contains("\"state\": \"BLOCKED\""));
+        assertTrue(json.contains("\"lockOwner\": \"" + Thread.currentThread().getName() + "\""));
+        assertFalse(json.contains("other-build-thread"));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link StartupTimings}.
+ */
+public class StartupTimingsTest {
+
+    @Rule
+    public final TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testPhasesAreReportedInOrder() {
+        final StartupTimings timings = new StartupTimings();
+        final long start = System.nanoTime();
+
+        timings.record("createServer", start);
+        timings.record("start", start);
+        timings.record("createServer", start);
+
+        assertEquals(asList("createServer", "start"), new ArrayList<>(timings.getPhases().keySet()));
+    }
+
+    @Test
+    public void testReportTotalIsReadBack() throws Exception {
+        final File report = new File(temporary.newFolder("startup"), "diffusion/startup.json");
+        final StartupTimings timings = new StartupTimings();
+
+        assertEquals(-1, StartupTimings.readTotalMillis(report));
+
+        timings.record("start", System.nanoTime());
+        timings.writeReport(report, "default", 1234);
+
+        final String json = new String(Files.readAllBytes(report.toPath()), UTF_8);
+
+        assertTrue(json.contains("\"serverId\": \"default\""));
+        assertTrue(json.contains("\"start\": "));
+        assertEquals(1234, StartupTimings.readTotalMillis(report));
+    }
+
+    @Test
+    public void testRegression() {
+        assertFalse(StartupTimings.isRegression(-1, 5000, 10));
+        assertFalse(StartupTimings.isRegression(1000, 1100, 10));
+        assertTrue(StartupTimings.isRegression(1000, 1101, 10));
+        assertTrue(StartupTimings.isRegression(1000, 1001, 0));
+    }
+}
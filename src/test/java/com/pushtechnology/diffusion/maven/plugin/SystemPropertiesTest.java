@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 Push Technology Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pushtechnology.diffusion.maven.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SystemProperties}.
+ */
+public class SystemPropertiesTest {
+
+    private static final String NAME = SystemPropertiesTest.class.getName() + ".name";
+    private static final String EMPTY = SystemPropertiesTest.class.getName() + ".empty";
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(NAME);
+        System.clearProperty(EMPTY);
+    }
+
+    @Test
+    public void testApplyToDoesNotSetSystemProperties() {
+        final Properties server = new Properties();
+
+        properties(false).applyTo(server);
+
+        assertEquals("value", server.getProperty(NAME));
+        assertEquals("", server.getProperty(EMPTY));
+        assertNull(System.getProperty(NAME));
+        assertNull(System.getProperty(EMPTY));
+    }
+
+    @Test
+    public void testApplyToKeepsSystemValueUnlessForced() {
+        System.setProperty(NAME, "command line");
+
+        final Properties server = new Properties();
+        properties(false).applyTo(server);
+        assertEquals("command line", server.getProperty(NAME));
+
+        final Properties forced = new Properties();
+        properties(true).applyTo(forced);
+        assertEquals("value", forced.getProperty(NAME));
+        assertEquals("command line", System.getProperty(NAME));
+    }
+
+    @Test
+    public void testApplyToSystem() {
+        properties(false).applyToSystem();
+
+        assertEquals("value", System.getProperty(NAME));
+        assertEquals("", System.getProperty(EMPTY));
+    }
+
+    @Test
+    public void testApplyToSystemKeepsSystemValueUnlessForced() {
+        System.setProperty(NAME, "command line");
+
+        properties(false).applyToSystem();
+        assertEquals("command line", System.getProperty(NAME));
+
+        properties(true).applyToSystem();
+        assertEquals("value", System.getProperty(NAME));
+    }
+
+    private static SystemProperties properties(boolean force) {
+        final SystemProperties properties = new SystemProperties();
+        properties.setForce(force);
+        properties.setSystemProperty(property(NAME, "value"));
+        properties.setSystemProperty(property(EMPTY, null));
+        return properties;
+    }
+
+    private static SystemProperty property(String name, String value) {
+        final SystemProperty property = new SystemProperty();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+}